@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code BatchExecutor} runs a task over a list of items on a fork-join pool. The list is split into ranges which are
+ * processed in parallel, results are returned in input order and a failing item does not affect the others.
+ */
+final class BatchExecutor {
+
+  /** ranges per worker thread, more ranges balance uneven item costs */
+  private static final int RANGES_PER_THREAD = 8;
+
+  /**
+   * task applied to every item
+   *
+   * @param <S> item type
+   * @param <T> result type
+   */
+  interface Task<S, T> {
+    T apply(S item) throws CTKException;
+  }
+
+  private BatchExecutor() {
+  }
+
+  /**
+   * @return the pool used when the caller does not configure one, created on first use
+   */
+  static ForkJoinPool getDefaultPool() {
+    return DefaultPoolHolder.POOL;
+  }
+
+  /**
+   * applies the task to all items
+   *
+   * @param pool pool to run on
+   * @param items given items
+   * @param task task to apply
+   * @return one result per item, in input order
+   */
+  static <S, T> List<BatchResult<T>> run(ForkJoinPool pool, List<? extends S> items, Task<S, T> task) {
+    // filled with placeholders so every range can set its own slots
+    List<BatchResult<T>> results = new ArrayList<>(Collections.<BatchResult<T>> nCopies(items.size(), null));
+    if (!items.isEmpty()) {
+      int threshold = Math.max(1, items.size() / (pool.getParallelism() * RANGES_PER_THREAD));
+      pool.invoke(new RangeAction<S, T>(new ArrayList<S>(items), task, results, 0, items.size(), threshold));
+    }
+    return results;
+  }
+
+  private static final class RangeAction<S, T> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<S> items;
+
+    private final Task<S, T> task;
+
+    private final List<BatchResult<T>> results;
+
+    private final int from;
+
+    private final int to;
+
+    private final int threshold;
+
+    RangeAction(List<S> items, Task<S, T> task, List<BatchResult<T>> results, int from, int to, int threshold) {
+      this.items = items;
+      this.task = task;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= threshold) {
+        for (int i = from; i < to; i++) {
+          results.set(i, apply(items.get(i)));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new RangeAction<S, T>(items, task, results, from, middle, threshold),
+            new RangeAction<S, T>(items, task, results, middle, to, threshold));
+      }
+    }
+
+    private BatchResult<T> apply(S item) {
+      try {
+        return BatchResult.success(task.apply(item));
+      } catch (CTKException e) {
+        return BatchResult.failure(e);
+      } catch (RuntimeException e) {
+        return BatchResult.failure(new CTKException(String.valueOf(e.getMessage()), e));
+      }
+    }
+  }
+
+  private static final class DefaultPoolHolder {
+    static final ForkJoinPool POOL = new ForkJoinPool();
+  }
+
+}
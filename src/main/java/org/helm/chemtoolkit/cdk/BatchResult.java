@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code BatchResult} the outcome of one item of a batch operation: either the value or the error which occurred
+ * while processing the item.
+ *
+ * @param <T> value type
+ */
+public final class BatchResult<T> {
+
+  private final T value;
+
+  private final CTKException error;
+
+  private BatchResult(T value, CTKException error) {
+    this.value = value;
+    this.error = error;
+  }
+
+  static <T> BatchResult<T> success(T value) {
+    return new BatchResult<>(value, null);
+  }
+
+  static <T> BatchResult<T> failure(CTKException error) {
+    return new BatchResult<>(null, error);
+  }
+
+  /**
+   * @return true if the item was processed without error
+   */
+  public boolean isSuccess() {
+    return error == null;
+  }
+
+  /**
+   * @return the value, null if the item failed
+   */
+  public T getValue() {
+    return value;
+  }
+
+  /**
+   * @return the error, null if the item succeeded
+   */
+  public CTKException getError() {
+    return error;
+  }
+
+  /**
+   * returns the value or throws the error of a failed item
+   *
+   * @return the value
+   * @throws CTKException the error of the item
+   */
+  public T get() throws CTKException {
+    if (error != null) {
+      throw error;
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return error == null ? "BatchResult[" + value + "]" : "BatchResult[error=" + error.getMessage() + "]";
+  }
+
+}
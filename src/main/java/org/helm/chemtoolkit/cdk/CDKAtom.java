@@ -17,6 +17,7 @@
 package org.helm.chemtoolkit.cdk;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.helm.chemtoolkit.AbstractMolecule.Flag;
@@ -42,6 +43,9 @@ public class CDKAtom extends IAtomBase {
 
   protected int boundCount;
 
+  // molecule whose R group index holds this atom
+  CDKMolecule owner;
+
   @Override
   public IAtom getMolAtom() {
     return atom;
@@ -51,15 +55,29 @@ public class CDKAtom extends IAtomBase {
    * @param atom given atom
    */
   public CDKAtom(IAtom atom) {
-    new CDKAtom(atom, 0, new ArrayList<IBond>(4));
+    this(atom, 0, Collections.<IBond> emptyList());
 
   }
 
   public CDKAtom(IAtom atom, int rGroup) {
-    new CDKAtom(atom, rGroup, new ArrayList<IBond>(4));
+    this(atom, rGroup, Collections.<IBond> emptyList());
 
   }
 
+  /**
+   * wrapper whose bonds are taken from the molecule when they are asked for
+   * 
+   * @param atom given atom
+   * @param rGroup given rgroup
+   * @param owner molecule of the atom
+   */
+  CDKAtom(IAtom atom, int rGroup, CDKMolecule owner) {
+    this.atom = atom;
+    this.flag = Flag.NONE;
+    this.rGroup = rGroup;
+    this.owner = owner;
+  }
+
   /**
    * @param atom given atom
    * @param rGroup given rgroup
@@ -71,7 +89,7 @@ public class CDKAtom extends IAtomBase {
     this.rGroup = rGroup;
     this.bonds = new ArrayList<CDKBond>(4);
     for (IBond bond : bonds) {
-      this.bonds.add(new CDKBond(bond));
+      this.bonds.add(new CDKBond(bond, this));
     }
 
   }
@@ -82,7 +100,7 @@ public class CDKAtom extends IAtomBase {
    */
   @Override
   public int getIBondCount() {
-    return bonds.size();
+    return getBonds().size();
   }
 
   /**
@@ -95,13 +113,24 @@ public class CDKAtom extends IAtomBase {
     try
 
     {
-      bond = bonds.get(arg0);
+      bond = getBonds().get(arg0);
     } catch (IndexOutOfBoundsException e) {
       throw new CTKException("bond doesn't exist", e);
     }
     return bond;
   }
 
+  private List<CDKBond> getBonds() {
+    if (bonds == null) {
+      List<IBond> connected = owner != null ? owner.getConnectedBonds(atom) : Collections.<IBond> emptyList();
+      bonds = new ArrayList<>(connected.size());
+      for (IBond bond : connected) {
+        bonds.add(new CDKBond(bond, this));
+      }
+    }
+    return bonds;
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -134,6 +163,9 @@ public class CDKAtom extends IAtomBase {
     }
 
     IAtom toCompare = ((CDKAtom) obj).getMolAtom();
+    if (toCompare == atom) {
+      return true;
+    }
 
     if ((toCompare instanceof IPseudoAtom) && (atom instanceof IPseudoAtom)) {
 
@@ -159,8 +191,12 @@ public class CDKAtom extends IAtomBase {
       // HELM Rgroups aren't really RGroups but attachment points, CDK can capture these
       // explicitly but this would change how they are displayed (more correct IMO)
       // patom.setAttachPointNum(rGroup);
+      int previous = this.rGroup;
       this.rGroup = rGroup;
       this.flag = Flag.PROCESSED;
+      if (owner != null) {
+        owner.rGroupChanged(this, previous);
+      }
     } else
       throw new CTKException("unable to set group id, the atom is not a PseudoAtom");
 
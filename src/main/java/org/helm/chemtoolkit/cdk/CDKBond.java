@@ -21,12 +21,13 @@
  ******************************************************************************/
 package org.helm.chemtoolkit.cdk;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.helm.chemtoolkit.IAtomBase;
 import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.IStereoElementBase;
+import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IBond;
 
 /**
@@ -41,6 +42,9 @@ public class CDKBond implements IBondBase {
 
   protected List<IBond> bonds;
 
+  // wrapper of an end atom, the ends are resolved to the wrappers of its molecule
+  CDKAtom from;
+
   public IBond getAtomBond() {
     return bond;
   }
@@ -50,12 +54,20 @@ public class CDKBond implements IBondBase {
    */
   public CDKBond(IBond bond) {
     this.bond = bond;
-    bonds = new ArrayList<>();
-    bonds.add(bond);
+    bonds = Collections.singletonList(bond);
+  }
+
+  /**
+   * @param bond given bond
+   * @param from wrapper of one of the atoms of the bond
+   */
+  CDKBond(IBond bond, CDKAtom from) {
+    this(bond);
+    this.from = from;
   }
 
   public CDKBond(IBond bond, IStereoElementBase stereo) {
-    new CDKBond(bond);
+    this(bond);
     if (stereo != null && stereo instanceof CDKStereoElement)
       this.stereoElement = (CDKStereoElement) stereo;
 
@@ -68,7 +80,7 @@ public class CDKBond implements IBondBase {
   @Override
   public IAtomBase getIAtom1() {
 
-    return new CDKAtom(bond.getAtom(0), 0, bonds);
+    return getIAtom(0);
   }
 
   /**
@@ -78,7 +90,26 @@ public class CDKBond implements IBondBase {
   @Override
   public IAtomBase getIAtom2() {
 
-    return new CDKAtom(bond.getAtom(1), 0, bonds);
+    return getIAtom(1);
+  }
+
+  /**
+   * returns the wrapper held by the molecule of the bond, a new wrapper only if the bond belongs to no molecule
+   */
+  private IAtomBase getIAtom(int index) {
+    IAtom atom = bond.getAtom(index);
+    if (from != null) {
+      if (from.atom == atom) {
+        return from;
+      }
+      if (from.owner != null) {
+        CDKAtom wrapper = from.owner.getAtom(atom);
+        if (wrapper != null) {
+          return wrapper;
+        }
+      }
+    }
+    return new CDKAtom(atom, 0, bonds);
   }
 
   /**
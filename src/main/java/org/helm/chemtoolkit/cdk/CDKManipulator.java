@@ -26,13 +26,30 @@ package org.helm.chemtoolkit.cdk;
  */
 
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
-
-import javax.imageio.ImageIO;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.helm.chemtoolkit.AbstractChemistryManipulator;
 import org.helm.chemtoolkit.AbstractMolecule;
@@ -44,17 +61,15 @@ import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.IStereoElementBase;
 import org.helm.chemtoolkit.MoleculeInfo;
 import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.depict.Depiction;
 import org.openscience.cdk.depict.DepictionGenerator;
 import org.openscience.cdk.interfaces.IChemObjectBuilder;
 import org.openscience.cdk.silent.Bond;
-import org.openscience.cdk.aromaticity.Aromaticity;
-import org.openscience.cdk.aromaticity.ElectronDonation;
-import org.openscience.cdk.atomtype.CDKAtomTypeMatcher;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
 import org.openscience.cdk.graph.ConnectivityChecker;
-import org.openscience.cdk.graph.CycleFinder;
-import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.inchi.InChIGenerator;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IAtomType;
@@ -67,26 +82,219 @@ import org.openscience.cdk.io.MDLV2000Reader;
 import org.openscience.cdk.io.MDLV2000Writer;
 import org.openscience.cdk.layout.StructureDiagramGenerator;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
-import org.openscience.cdk.smiles.SmiFlavor;
 import org.openscience.cdk.smiles.SmilesGenerator;
-import org.openscience.cdk.smiles.SmilesParser;
 import org.openscience.cdk.stereo.TetrahedralChirality;
-import org.openscience.cdk.tools.CDKHydrogenAdder;
 import org.openscience.cdk.tools.ProteinBuilderTool;
 import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import org.openscience.cdk.tools.manipulator.AtomTypeManipulator;
-import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.sf.jniinchi.INCHI_RET;
+
+/**
+ * CDK implementation of the chemistry manipulator. An instance is safe for concurrent use: the CDK parsers,
+ * generators and perception tools it needs are kept per thread (see {@link CDKTools}), the depiction generator is
+ * immutable and the caches are synchronized. One manipulator can be shared by a whole thread pool.
+ */
 public class CDKManipulator extends AbstractChemistryManipulator {
 
 	private static final Logger LOG = LoggerFactory.getLogger(CDKManipulator.class);
 
 	// moderately expensive to create (font embedded) so we have one per
-	// manipulator
+	// manipulator, immutable so it is shared by all threads
 	private final DepictionGenerator depictionGenerator = new DepictionGenerator();
 
+	// parsed molecules by input, disabled unless a size is set
+	private volatile LruCache<String, IAtomContainer> moleculeCache;
+
+	// 2D coordinates of monomers by input, disabled unless a size is set
+	private volatile LruCache<String, double[]> layoutTemplates;
+
+	// lay out merged fragments one by one instead of the whole polymer
+	private volatile boolean incrementalLayout;
+
+	// canonical smiles by input smiles, disabled unless a size is set
+	private volatile LruCache<String, String> canonicalCache;
+
+	// canonical smiles with isotopes by input smiles, for the structure hashes, sized like the canonical cache
+	private volatile LruCache<String, String> isomericCanonicalCache;
+
+	// InChI and InChIKey by isomeric canonical smiles and input smiles, disabled unless a size is set
+	private volatile LruCache<String, String[]> inchiCache;
+
+	// encoded images by input and settings, bounded by bytes, disabled unless a size is set
+	private volatile LruCache<String, byte[]> renderCache;
+
+	// compression quality of raster images, negative for the writer default
+	private volatile float compressionQuality = -1;
+
+	// pool for batch operations, the shared default pool if not set
+	private volatile ForkJoinPool batchPool;
+
+	/**
+	 * enables the monomer layout templates. With templates, {@link #getMolecule(String, AttachmentList)} returns
+	 * molecules with 2D coordinates: every distinct smiles is laid out once and later molecules from the same input
+	 * reuse its coordinates. {@link #merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)} places laid out
+	 * molecules as rigid templates, so an assembled polymer has coordinates without a layout of the whole polymer.
+	 *
+	 * @param maximumSize
+	 *            maximum number of templates, 0 disables the templates
+	 */
+	public void setLayoutTemplateCacheSize(int maximumSize) {
+		layoutTemplates = maximumSize > 0 ? new LruCache<String, double[]>(maximumSize) : null;
+	}
+
+	/**
+	 * enables the incremental layout. With it, {@link #merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)}
+	 * lays out a fragment without coordinates on its own and places it at the new bond, the coordinates of the
+	 * fragments merged before stay as they are. Merging step by step then costs a layout of each new fragment only
+	 * and every intermediate polymer can be rendered without a layout of the whole container.
+	 *
+	 * @param incrementalLayout
+	 *            true to lay out merged fragments incrementally
+	 */
+	public void setIncrementalLayout(boolean incrementalLayout) {
+		this.incrementalLayout = incrementalLayout;
+	}
+
+	/**
+	 * @return true if merged fragments are laid out incrementally
+	 */
+	public boolean isIncrementalLayout() {
+		return incrementalLayout;
+	}
+
+	/**
+	 * returns the layout template cache, e.g. to read its hit and miss counts
+	 *
+	 * @return the template cache or null if templates are disabled
+	 */
+	public LruCache<?, ?> getLayoutTemplateCache() {
+		return layoutTemplates;
+	}
+
+	/**
+	 * enables the cache of encoded images used by {@link #renderMol(String, OutputType, int, int, int)},
+	 * {@link #renderSequence(String, OutputType, int, int, int)} and their SVG variants. Images are cached by the hash
+	 * of the molfile or sequence together with the output type, size and background color.
+	 *
+	 * @param maximumBytes
+	 *            maximum total size of the cached images in bytes, 0 disables the cache
+	 */
+	public void setRenderCacheSize(long maximumBytes) {
+		renderCache = maximumBytes > 0 ? new LruCache<String, byte[]>(maximumBytes) {
+			@Override
+			protected long weigh(byte[] value) {
+				return value.length;
+			}
+		} : null;
+	}
+
+	/**
+	 * returns the render cache, e.g. to read its hit ratio and byte usage ({@link LruCache#getWeight()})
+	 *
+	 * @return the render cache or null if it is disabled
+	 */
+	public LruCache<?, ?> getRenderCache() {
+		return renderCache;
+	}
+
+	/**
+	 * sets the compression quality of raster images, passed to the ImageIO writer of the format if it supports
+	 * compression. The PNG writer of Java 7 and 8 does not and ignores the value. From Java 9, where PNG is still
+	 * lossless, lower values give smaller images and higher values faster encoding.
+	 *
+	 * @param quality
+	 *            quality between 0 and 1, negative for the default of the writer
+	 */
+	public void setImageCompressionQuality(float quality) {
+		if (quality > 1)
+			throw new IllegalArgumentException("quality must not exceed 1");
+		this.compressionQuality = quality;
+	}
+
+	/**
+	 * sets the fork-join pool used by the batch operations such as {@link #convertAll(List, StType)}
+	 *
+	 * @param pool
+	 *            pool to use, null for a shared pool with one thread per core
+	 */
+	public void setBatchPool(ForkJoinPool pool) {
+		this.batchPool = pool;
+	}
+
+	/**
+	 * @return the fork-join pool used by the batch operations
+	 */
+	public ForkJoinPool getBatchPool() {
+		ForkJoinPool pool = batchPool;
+		return pool != null ? pool : BatchExecutor.getDefaultPool();
+	}
+
+	/**
+	 * enables the cache of parsed molecules used by {@link #getMolecule(String, AttachmentList)}. Every call gets an
+	 * independent copy of the cached molecule, so the result can be modified by merge.
+	 *
+	 * @param maximumSize
+	 *            maximum number of cached molecules, 0 disables the cache
+	 */
+	public void setMoleculeCacheSize(int maximumSize) {
+		moleculeCache = maximumSize > 0 ? new LruCache<String, IAtomContainer>(maximumSize) : null;
+	}
+
+	/**
+	 * enables the cache of {@link #canonicalize(String)}. Inputs seen before are answered without parsing and
+	 * canonical labelling, the canonical smiles are interned so equal structures share one string. The structure
+	 * hashes get a cache of the same size.
+	 *
+	 * @param maximumSize
+	 *            maximum number of cached inputs, 0 disables the cache
+	 */
+	public void setCanonicalCacheSize(int maximumSize) {
+		canonicalCache = maximumSize > 0 ? new LruCache<String, String>(maximumSize) : null;
+		isomericCanonicalCache = maximumSize > 0 ? new LruCache<String, String>(maximumSize) : null;
+	}
+
+	/**
+	 * returns the canonical smiles cache, e.g. to read its hit ratio
+	 *
+	 * @return the canonical smiles cache or null if it is disabled
+	 */
+	public LruCache<?, ?> getCanonicalCache() {
+		return canonicalCache;
+	}
+
+	/**
+	 * enables the cache of {@link #getInChI(String)} and {@link #getInChIKey(String)}. The InChI and InChIKey are
+	 * cached together by canonical smiles with stereo and isotopes, so different inputs of the same structure are
+	 * generated once. Input smiles are cached as well, a smiles seen before is answered without parsing.
+	 *
+	 * @param maximumSize
+	 *            maximum number of cached structures, 0 disables the cache
+	 */
+	public void setInChICacheSize(int maximumSize) {
+		inchiCache = maximumSize > 0 ? new LruCache<String, String[]>(maximumSize) : null;
+	}
+
+	/**
+	 * returns the InChI cache, e.g. to read its hit ratio
+	 *
+	 * @return the InChI cache or null if it is disabled
+	 */
+	public LruCache<?, ?> getInChICache() {
+		return inchiCache;
+	}
+
+	/**
+	 * returns the molecule cache, e.g. to read its hit, miss and eviction counts
+	 *
+	 * @return the molecule cache or null if it is disabled
+	 */
+	public LruCache<?, ?> getMoleculeCache() {
+		return moleculeCache;
+	}
+
 	/**
 	 * removes a extended part of smiles if exists
 	 *
@@ -109,9 +317,8 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	@Override
 	public boolean validateSMILES(String smiles) {
 		smiles = normalize(smiles);
-		SmilesParser smilesParser = new SmilesParser(SilentChemObjectBuilder.getInstance());
 		try {
-			IAtomContainer molecule = smilesParser.parseSmiles(smiles);
+			IAtomContainer molecule = CDKTools.get().smilesParser.parseSmiles(smiles);
 			if (molecule.getAtomCount() == 0) {
 				throw new InvalidSmilesException("invalid smiles!");
 			}
@@ -124,22 +331,32 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	}
 
 	/**
-	 *
 	 * {@inheritDoc}
+	 * <p>
+	 * The result is a {@link MoleculeProperties}, which also holds the element counts. All values are computed in
+	 * one pass over the atoms.
 	 */
 	@Override
 	public MoleculeInfo getMoleculeInfo(AbstractMolecule aMolecule) throws CTKException {
-		IAtomContainer molecule = (IAtomContainer) aMolecule.getMolecule();
-		MoleculeInfo moleculeInfo = new MoleculeInfo();
-
-		moleculeInfo.setMolecularWeight(AtomContainerManipulator.getNaturalExactMass(molecule));
-		moleculeInfo.setMolecularFormula(
-				MolecularFormulaManipulator.getString(MolecularFormulaManipulator.getMolecularFormula(molecule)));
-
-		moleculeInfo.setExactMass(MolecularFormulaManipulator
-				.getMajorIsotopeMass(MolecularFormulaManipulator.getMolecularFormula(molecule)));
+		return MoleculeProperties.of((IAtomContainer) aMolecule.getMolecule());
+	}
 
-		return moleculeInfo;
+	/**
+	 * computes the properties of all given molecules in parallel on the batch pool, see
+	 * {@link #getMoleculeInfo(AbstractMolecule)}
+	 *
+	 * @param molecules
+	 *            given molecules
+	 * @return one result per molecule, in input order
+	 */
+	public List<BatchResult<MoleculeProperties>> getMoleculeInfos(List<? extends AbstractMolecule> molecules) {
+		return BatchExecutor.run(getBatchPool(), molecules,
+				new BatchExecutor.Task<AbstractMolecule, MoleculeProperties>() {
+					@Override
+					public MoleculeProperties apply(AbstractMolecule item) throws CTKException {
+						return MoleculeProperties.of((IAtomContainer) item.getMolecule());
+					}
+				});
 	}
 
 	/**
@@ -157,7 +374,7 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 				MDLV2000Writer writer = new MDLV2000Writer(stringWriter);) {
 			try {
 
-				IAtomContainer molecule = getIAtomContainer(smiles);
+				IAtomContainer molecule = getIAtomContainer(smiles, true);
 
 				writer.writeMolecule(molecule);
 				result = stringWriter.toString();
@@ -178,7 +395,7 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	public String convertMolIntoSmilesWithAtomMapping(String molfile) throws CTKException {
 		IAtomContainer molecule = null;
 		molecule = getIAtomContainerFromMolFile(molfile);
-		SmilesGenerator sg = new SmilesGenerator(SmiFlavor.CxSmiles + SmiFlavor.Canonical + SmiFlavor.Stereo);
+		SmilesGenerator sg = CDKTools.get().atomMappingGenerator;
 		String smiles;
 
 		try {
@@ -215,12 +432,9 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 
 			IAtomContainer molecule = reader
 					.read(SilentChemObjectBuilder.getInstance().newInstance(IAtomContainer.class));
-			ElectronDonation model = ElectronDonation.cdk();
-			CycleFinder cycles = Cycles.cdkAromaticSet();
-			Aromaticity aromaticity = new Aromaticity(model, cycles);
 
 			AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(molecule);
-			aromaticity.apply(molecule);
+			CDKTools.get().aromaticity.apply(molecule);
 			for (IAtom atom : molecule.atoms()) {
 				if (atom instanceof IPseudoAtom) {
 
@@ -267,22 +481,275 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 		return result;
 	}
 
+	/**
+	 * converts all given structures in parallel on the batch pool, see {@link #convert(String, StType)}. A structure
+	 * which cannot be converted yields a failed result and does not stop the batch.
+	 *
+	 * @param data
+	 *            structures to convert
+	 * @param type
+	 *            type of the given structures
+	 * @return one result per structure, in input order
+	 */
+	public List<BatchResult<String>> convertAll(List<String> data, final StType type) {
+		return BatchExecutor.run(getBatchPool(), data, new BatchExecutor.Task<String, String>() {
+			@Override
+			public String apply(String item) throws CTKException {
+				return convert(item, type);
+			}
+		});
+	}
+
+	/**
+	 * converts an SD file record by record, reading from the input stream and writing to the output stream as it
+	 * goes, so heap use does not depend on the file size. Each record goes through the same molfile perception as
+	 * {@link #convert(String, StType)}.
+	 * <p>
+	 * For {@link StType#SMILES} one line is written per record, an empty line for a record which cannot be
+	 * converted. For {@link StType#MOLFILE} every record is written as a normalized molfile followed by its original
+	 * data items; a record which cannot be converted is copied unchanged. The streams are not closed.
+	 *
+	 * @param in
+	 *            SD file
+	 * @param out
+	 *            destination of the converted records
+	 * @param outputType
+	 *            {@link StType#SMILES} or {@link StType#MOLFILE}
+	 * @return number of records converted successfully
+	 * @throws CTKException
+	 *             if the streams cannot be read or written
+	 */
+	public long convertSDFile(InputStream in, OutputStream out, StType outputType) throws CTKException {
+		if (outputType != StType.SMILES && outputType != StType.MOLFILE)
+			throw new CTKException("unsupported output type " + outputType);
+
+		long converted = 0;
+		SDFRecordReader reader = new SDFRecordReader(in);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.ISO_8859_1), 65536);
+		try {
+			String record;
+			while ((record = reader.next()) != null) {
+				String result = null;
+				try {
+					IAtomContainer molecule = getIAtomContainerFromMolFile(record);
+					if (outputType == StType.SMILES)
+						result = molecule2Smiles(molecule);
+					else
+						result = molecule2Molfile(molecule) + getDataItems(record);
+					converted++;
+				} catch (CTKException | RuntimeException e) {
+					// the reader fails with runtime exceptions on malformed records
+					LOG.warn("unable to convert SD file record " + reader.getRecordCount() + ": " + e.getMessage());
+				}
+
+				if (outputType == StType.SMILES) {
+					writer.write(result != null ? result : "");
+					writer.write('\n');
+				} else {
+					writer.write(result != null ? result : record);
+					writer.write(SDFRecordReader.DELIMITER);
+					writer.write('\n');
+				}
+			}
+			writer.flush();
+		} catch (IOException e) {
+			throw new CTKException("unable to process the SD file", e);
+		}
+		return converted;
+	}
+
+	/**
+	 * returns the data items of an SD file record, the lines after the molfile's end line
+	 *
+	 * @param record
+	 *            SD file record
+	 * @return data item lines, empty if there are none
+	 */
+	private String getDataItems(String record) {
+		int end = record.indexOf("M  END");
+		if (end < 0)
+			return "";
+		int lineEnd = record.indexOf('\n', end);
+		return lineEnd < 0 ? "" : record.substring(lineEnd + 1);
+	}
+
 	/**
 	 *
 	 * {@inheritDoc}
 	 */
 	@Override
 	public String canonicalize(String smiles) throws CTKException, CTKSmilesException {
-		IAtomContainer molecule = getIAtomContainer(smiles);
-		// XXX: - not including Stereochemistry! '+ SmiFlavor.Stereo'
-		//      - can put the CXSMILES labels (e.g. |$R1;R2$|)  on there with: '+ SmiFlavor.CxAtomLabel'
-		SmilesGenerator generator = new SmilesGenerator(SmiFlavor.Canonical + SmiFlavor.Stereo);
+		return canonicalize(smiles, canonicalCache, CDKTools.get().canonicalGenerator);
+	}
+
+	/**
+	 * generates the canonical smiles with the given generator, through the given cache if it is enabled
+	 */
+	private String canonicalize(String smiles, LruCache<String, String> cache, SmilesGenerator generator)
+			throws CTKException, CTKSmilesException {
+		String key = null;
+		if (cache != null) {
+			key = smiles.trim();
+			String cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+
+		IAtomContainer molecule = getIAtomContainer(smiles, false);
 		String result = null;
 		try {
 			result = generator.create(molecule);
 		} catch (CDKException e) {
 			throw new CTKSmilesException("invalid smiles", e);
 		}
+		if (cache != null) {
+			result = result.intern();
+			cache.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * returns a 64 bit hash of the canonical smiles of the given structure, see {@link StructureHash}. Unlike
+	 * {@link #canonicalize(String)}, the smiles keeps isotopes, so labelled structures get their own hash.
+	 *
+	 * @param smiles
+	 *            given smiles
+	 * @return structure hash
+	 * @throws CTKException
+	 *             general ChemToolKit exception passed to HELMToolKit
+	 */
+	public long getStructureHash(String smiles) throws CTKException {
+		return StructureHash.hash64(canonicalizeIsomeric(smiles));
+	}
+
+	/**
+	 * returns a 128 bit hash of the canonical smiles with isotopes of the given structure, see
+	 * {@link #getStructureHash(String)}
+	 *
+	 * @param smiles
+	 *            given smiles
+	 * @return structure hash as two longs
+	 * @throws CTKException
+	 *             general ChemToolKit exception passed to HELMToolKit
+	 */
+	public long[] getStructureHash128(String smiles) throws CTKException {
+		return StructureHash.hash128(canonicalizeIsomeric(smiles));
+	}
+
+	private String canonicalizeIsomeric(String smiles) throws CTKException {
+		return canonicalize(smiles, isomericCanonicalCache, CDKTools.get().isomericCanonicalGenerator);
+	}
+
+	/**
+	 * returns the standard InChI of the given structure
+	 *
+	 * @param data
+	 *            smiles or molfile
+	 * @return InChI
+	 * @throws CTKException
+	 *             if the structure cannot be read or InChI generation fails, e.g. for R groups
+	 */
+	public String getInChI(String data) throws CTKException {
+		return getInChIAndKey(data)[0];
+	}
+
+	/**
+	 * returns the standard InChIKey of the given structure
+	 *
+	 * @param data
+	 *            smiles or molfile
+	 * @return InChIKey
+	 * @throws CTKException
+	 *             if the structure cannot be read or InChI generation fails, e.g. for R groups
+	 */
+	public String getInChIKey(String data) throws CTKException {
+		return getInChIAndKey(data)[1];
+	}
+
+	/**
+	 * returns the InChI of all given structures, generated in parallel on the batch pool, see
+	 * {@link #getInChI(String)}. The native InChI library runs one structure at a time, reading the input and the
+	 * canonical smiles runs in parallel.
+	 *
+	 * @param data
+	 *            smiles or molfiles
+	 * @return one result per structure, in input order
+	 */
+	public List<BatchResult<String>> getInChIs(List<String> data) {
+		return BatchExecutor.run(getBatchPool(), data, new BatchExecutor.Task<String, String>() {
+			@Override
+			public String apply(String item) throws CTKException {
+				return getInChI(item);
+			}
+		});
+	}
+
+	/**
+	 * returns the InChIKey of all given structures, generated in parallel on the batch pool, see
+	 * {@link #getInChIs(List)}
+	 *
+	 * @param data
+	 *            smiles or molfiles
+	 * @return one result per structure, in input order
+	 */
+	public List<BatchResult<String>> getInChIKeys(List<String> data) {
+		return BatchExecutor.run(getBatchPool(), data, new BatchExecutor.Task<String, String>() {
+			@Override
+			public String apply(String item) throws CTKException {
+				return getInChIKey(item);
+			}
+		});
+	}
+
+	/**
+	 * returns the InChI and InChIKey of a structure, from the InChI cache if it is enabled. The input is parsed once
+	 * for both the cache key and the generation. Input smiles and canonical smiles share the cache, a canonical
+	 * smiles reads back as the structure it was generated from.
+	 */
+	private String[] getInChIAndKey(String data) throws CTKException {
+		LruCache<String, String[]> cache = inchiCache;
+		StType type = FormatDetector.detect(data);
+		String input = type == StType.SMILES ? data.trim() : null;
+
+		if (cache != null && input != null) {
+			String[] cached = cache.get(input);
+			if (cached != null)
+				return cached;
+		}
+
+		IAtomContainer molecule = type == StType.SMILES ? getIAtomContainer(data, false)
+				: getIAtomContainerFromMolFile(data);
+		String key = null;
+		if (cache != null) {
+			try {
+				key = CDKTools.get().isomericCanonicalGenerator.create(molecule);
+			} catch (CDKException e) {
+				throw new CTKException(e.getMessage(), e);
+			}
+			String[] cached = cache.get(key);
+			if (cached != null) {
+				if (input != null)
+					cache.put(input, cached);
+				return cached;
+			}
+		}
+
+		String[] result;
+		try {
+			InChIGenerator generator = InChIGeneratorFactory.getInstance().getInChIGenerator(molecule);
+			INCHI_RET status = generator.getReturnStatus();
+			if (status != INCHI_RET.OKAY && status != INCHI_RET.WARNING)
+				throw new CTKException("InChI generation failed: " + generator.getMessage());
+			result = new String[] { generator.getInchi(), generator.getInchiKey() };
+		} catch (CDKException e) {
+			throw new CTKException(e.getMessage(), e);
+		}
+		if (cache != null) {
+			cache.put(key, result);
+			if (input != null && !input.equals(key))
+				cache.put(input, result);
+		}
 		return result;
 	}
 
@@ -292,48 +759,310 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	 */
 	@Override
 	public byte[] renderMol(String molFile, OutputType outputType, int width, int height, int rgb) throws CTKException {
+		return render(molFile, false, outputType.toString(), width, height, rgb);
+	}
+
+	/**
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] renderSequence(String sequence, OutputType outputType, int width, int height, int rgb)
+			throws CTKException {
+		return render(sequence, true, outputType.toString(), width, height, rgb);
+	}
+
+	/**
+	 * draws a molfile straight into the given stream, without building the whole image in memory first when the
+	 * render cache is disabled. The stream is not closed.
+	 *
+	 * @param molFile
+	 *            molecule to draw
+	 * @param outputType
+	 *            image format
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @param out
+	 *            destination of the encoded image
+	 * @throws CTKException
+	 */
+	public void renderMol(String molFile, OutputType outputType, int width, int height, int rgb, OutputStream out)
+			throws CTKException {
+		try {
+			if (renderCache != null)
+				out.write(render(molFile, false, outputType.toString(), width, height, rgb));
+			else
+				depict(molFile, outputType.toString(), width, height, rgb, out);
+			out.flush();
+		} catch (IOException e) {
+			throw new CTKException("unable to write the image", e);
+		}
+	}
+
+	/**
+	 * draws a molfile straight into the given channel, see
+	 * {@link #renderMol(String, OutputType, int, int, int, OutputStream)}. The channel is not closed.
+	 *
+	 * @param molFile
+	 *            molecule to draw
+	 * @param outputType
+	 *            image format
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @param channel
+	 *            destination of the encoded image
+	 * @throws CTKException
+	 */
+	public void renderMol(String molFile, OutputType outputType, int width, int height, int rgb,
+			WritableByteChannel channel) throws CTKException {
+		renderMol(molFile, outputType, width, height, rgb, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * draws a molfile as SVG. The depiction is serialized directly as vector graphics, no raster image is created.
+	 * The size is given in pixels at 96 dpi like for the raster formats, browsers can scale the image freely.
+	 *
+	 * @param molFile
+	 *            molecule to draw
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @return the SVG document, UTF-8 encoded
+	 * @throws CTKException
+	 */
+	public byte[] renderMolSvg(String molFile, int width, int height, int rgb) throws CTKException {
+		return render(molFile, false, Depiction.SVG_FMT, width, height, rgb);
+	}
+
+	/**
+	 * draws a peptide sequence as SVG, see {@link #renderMolSvg(String, int, int, int)}
+	 *
+	 * @param sequence
+	 *            sequence to draw
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @return the SVG document, UTF-8 encoded
+	 * @throws CTKException
+	 */
+	public byte[] renderSequenceSvg(String sequence, int width, int height, int rgb) throws CTKException {
+		return render(sequence, true, Depiction.SVG_FMT, width, height, rgb);
+	}
+
+	/**
+	 * draws a molfile or a sequence, using the render cache if it is enabled
+	 *
+	 * @param input
+	 *            molfile or sequence
+	 * @param sequence
+	 *            true if the input is a sequence
+	 * @param format
+	 *            image format, a raster format or svg
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @return the encoded image
+	 * @throws CTKException
+	 */
+	private byte[] render(String input, boolean sequence, String format, int width, int height, int rgb)
+			throws CTKException {
+		LruCache<String, byte[]> cache = renderCache;
+		String key = null;
+		if (cache != null) {
+			key = getRenderCacheKey(sequence ? "SEQUENCE" : "MOL", input, format, width, height, rgb,
+					compressionQuality);
+			byte[] cached = cache.get(key);
+			if (cached != null)
+				return cached.clone();
+		}
+
+		String molFile = input;
+		if (sequence)
+			molFile = convertSMILES2MolFile(molecule2Smiles(getPolymer(input)));
 
-		DepictionGenerator myGenerator = depictionGenerator.withBackgroundColor(new Color(rgb)).withSize(width, height);
+		byte[] result = depict(molFile, format, width, height, rgb);
+		if (cache != null) {
+			cache.put(key, result);
+			result = result.clone();
+		}
+		return result;
+	}
+
+	/**
+	 * draws a molfile into an image
+	 *
+	 * @param molFile
+	 *            molecule to draw
+	 * @param format
+	 *            image format, a raster format or svg
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @return the encoded image
+	 * @throws CTKException
+	 */
+	private byte[] depict(String molFile, String format, int width, int height, int rgb) throws CTKException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		depict(molFile, format, width, height, rgb, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * draws a molfile into an image written to the given stream. Raster images are encoded with the image writer of
+	 * the current thread.
+	 *
+	 * @param molFile
+	 *            molecule to draw
+	 * @param format
+	 *            image format, a raster format or svg
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @param out
+	 *            destination of the encoded image
+	 * @throws CTKException
+	 */
+	private void depict(String molFile, String format, int width, int height, int rgb, OutputStream out)
+			throws CTKException {
+		boolean vector = Depiction.SVG_FMT.equalsIgnoreCase(format);
+		// vector sizes are in millimeters, convert from pixels at 96 dpi
+		double scale = vector ? 25.4 / 96 : 1;
+		DepictionGenerator myGenerator = depictionGenerator.withBackgroundColor(new Color(rgb)).withSize(width * scale,
+				height * scale);
 		// can call set 'setZoom(x)' to change the scaling if required, by
 		// default depictions are smaller
 		// than old version but may still want a setZoom(0.8) etc
 
-		byte[] result;
 		IChemObjectBuilder bldr = SilentChemObjectBuilder.getInstance();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
 		try (StringReader stringReader = new StringReader(molFile);
 				MDLV2000Reader molfileReader = new MDLV2000Reader(stringReader)) {
 
 			IAtomContainer mol = molfileReader.read(bldr.newInstance(IAtomContainer.class, 0, 0, 0, 0));
-			BufferedImage img = myGenerator.depict(mol).toImg();
+			Depiction depiction = myGenerator.depict(mol);
+			if (vector) {
+				out.write(depiction.toSvgStr().getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			BufferedImage img = depiction.toImg();
 
-			ImageIO.write(img, outputType.toString(), baos);
+			writeImage(img, format, out);
 		} catch (IOException e) {
 			throw new CTKException("unable to invoke the reader", e);
 		} catch (CDKException e) {
 			throw new CTKException("invalid molfile", e);
 		}
-
-		result = baos.toByteArray();
-		return result;
-
 	}
 
 	/**
+	 * encodes an image with the reusable image writer of the current thread, applying the configured compression
+	 * quality
 	 *
-	 * {@inheritDoc}
+	 * @param img
+	 *            image to encode
+	 * @param format
+	 *            raster format
+	 * @param out
+	 *            destination of the encoded image
+	 * @throws IOException
+	 * @throws CTKException
+	 *             if there is no writer for the format
 	 */
-	@Override
-	public byte[] renderSequence(String sequence, OutputType outputType, int width, int height, int rgb)
-			throws CTKException {
-		String molFile;
-		IAtomContainer molecule = getPolymer(sequence);
+	private void writeImage(BufferedImage img, String format, OutputStream out) throws IOException, CTKException {
+		ImageWriter writer = CDKTools.get().getImageWriter(format);
+		if (writer == null)
+			throw new CTKException("no image writer for " + format);
+
+		if (img.getColorModel().hasAlpha() && !writer.getOriginatingProvider().canEncodeImage(img)) {
+			// e.g. JPEG has no alpha channel
+			BufferedImage opaque = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D graphics = opaque.createGraphics();
+			graphics.drawImage(img, 0, 0, null);
+			graphics.dispose();
+			img = opaque;
+		}
 
-		molFile = convertSMILES2MolFile(molecule2Smiles(molecule));
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		float quality = compressionQuality;
+		if (quality >= 0 && param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			String[] types = param.getCompressionTypes();
+			if (types != null && types.length > 0 && param.getCompressionType() == null)
+				param.setCompressionType(types[0]);
+			param.setCompressionQuality(quality);
+		}
 
-		return renderMol(molFile, outputType, width, height, rgb);
+		// memory cache instead of ImageIO's default temporary file
+		try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.reset();
+		}
+	}
 
+	/**
+	 * returns the render cache key of an image: the input kind, the SHA-256 hash of the input and the image settings.
+	 * Hashing keeps large molfiles out of the cache keys.
+	 *
+	 * @param kind
+	 *            kind of input, molfile or sequence
+	 * @param content
+	 *            input to draw
+	 * @param format
+	 *            image format
+	 * @param width
+	 *            image width
+	 * @param height
+	 *            image height
+	 * @param rgb
+	 *            background color
+	 * @param quality
+	 *            compression quality
+	 * @return cache key
+	 */
+	private String getRenderCacheKey(String kind, String content, String format, int width, int height, int rgb,
+			float quality) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform provides SHA-256
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder(kind.length() + 2 * hash.length + 40);
+		key.append(kind).append(':');
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		key.append(':').append(format).append(':').append(width).append('x').append(height).append(':').append(rgb);
+		key.append(':').append(quality);
+		return key.toString();
 	}
 
 	/**
@@ -346,7 +1075,7 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	private String molecule2Smiles(IAtomContainer molecule) throws CTKException {
 		String result = null;
 
-		SmilesGenerator generator = SmilesGenerator.isomeric();
+		SmilesGenerator generator = CDKTools.get().isomericGenerator;
 		try {
 			result = generator.create(molecule);
 		} catch (CDKException e) {
@@ -366,14 +1095,13 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	private IAtomContainer getPolymer(String sequence) throws CTKException {
 		IAtomContainer polymer;
 		try {
-			polymer = ProteinBuilderTool.createProtein(sequence, SilentChemObjectBuilder.getInstance());
-			CDKAtomTypeMatcher matcher = CDKAtomTypeMatcher.getInstance(polymer.getBuilder());
+			CDKTools tools = CDKTools.get();
+			polymer = ProteinBuilderTool.createProtein(sequence, tools.builder);
 			for (IAtom atom : polymer.atoms()) {
-				IAtomType type = matcher.findMatchingAtomType(polymer, atom);
+				IAtomType type = tools.atomTypeMatcher.findMatchingAtomType(polymer, atom);
 				AtomTypeManipulator.configure(atom, type);
 			}
-			CDKHydrogenAdder hydrogenAdder = CDKHydrogenAdder.getInstance(polymer.getBuilder());
-			hydrogenAdder.addImplicitHydrogens(polymer);
+			tools.hydrogenAdder.addImplicitHydrogens(polymer);
 
 		} catch (CDKException e) {
 			throw new CTKException(e.getMessage(), e);
@@ -390,40 +1118,103 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 	@Override
 	public AbstractMolecule getMolecule(String data, AttachmentList attachments) throws CTKException {
 		IAtomContainer molecule = null;
+		LruCache<String, IAtomContainer> cache = moleculeCache;
+		LruCache<String, double[]> templates = layoutTemplates;
+		StType type = FormatDetector.detect(data);
+		String key = null;
+
+		if (cache != null || templates != null)
+			key = getCacheKey(type, data);
+
+		if (cache != null) {
+			IAtomContainer cached = cache.get(key);
+			if (cached != null)
+				molecule = cloneContainer(cached);
+		}
 
-		if (validateSMILES(data))
-			molecule = getIAtomContainer(data);
-		else
-			molecule = getIAtomContainerFromMolFile(data);
+		if (molecule == null) {
+			// the format is known up front, so the input is parsed exactly once
+			if (type == StType.SMILES) {
+				// coordinates are generated on demand, see CDKMolecule#hasCoordinates()
+				molecule = getIAtomContainer(data, false);
+				if (molecule.getAtomCount() == 0)
+					throw new CTKSmilesException("invalid smiles");
+			} else
+				molecule = getIAtomContainerFromMolFile(data);
+
+			if (cache != null) {
+				cache.put(key, molecule);
+				molecule = cloneContainer(molecule);
+			}
+		}
 
 		CDKMolecule result = new CDKMolecule(molecule, attachments);
 
+		if (templates != null && !result.hasCoordinates()) {
+			double[] coordinates = templates.get(key);
+			if (coordinates != null && coordinates.length == 2 * molecule.getAtomCount()) {
+				result.setCoordinates(coordinates);
+			} else {
+				result.generateCoordinates(2);
+				templates.put(key, result.getCoordinates());
+			}
+		}
+
 		return result;
 	}
 
+	/**
+	 * returns the molecule cache key of the given input: the input type followed by the input without trailing
+	 * whitespace and with unix line endings
+	 *
+	 * @param type
+	 *            detected input type
+	 * @param data
+	 *            smiles or molfile
+	 * @return cache key
+	 */
+	private String getCacheKey(StType type, String data) {
+		int end = data.length();
+		while (end > 0 && Character.isWhitespace(data.charAt(end - 1))) {
+			end--;
+		}
+		String normalized = data.substring(0, end);
+		if (type == StType.SMILES)
+			return type + ":" + normalized.trim();
+		return type + ":" + normalized.replace("\r\n", "\n");
+	}
+
+	private IAtomContainer cloneContainer(IAtomContainer molecule) throws CTKException {
+		return CDKMolecule.cloneContainer(molecule);
+	}
+
 	/**
 	 * parses smiles to a molecule
 	 *
 	 * @param smiles
 	 *            to parse
+	 * @param layout
+	 *            true to generate 2D coordinates, only needed for molfile output and depiction
 	 * @return a molecule instance of {@link IAtomContainer}
 	 * @throws CTKException
 	 */
-	private IAtomContainer getIAtomContainer(String smiles) throws CTKException {
+	private IAtomContainer getIAtomContainer(String smiles, boolean layout) throws CTKException {
 		IAtomContainer molecule = null;
 		LOG.debug("smiles= " + smiles);
-		SmilesParser smilesParser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+		CDKTools tools = CDKTools.get();
 
 		try {
 			if (smiles.contains(".")) {
 				throw new CTKException(
 						"Molecule not connected. Use ConnectivityChecker.partitionIntoMolecules() and do the layout for every single component");
 			}
-			molecule = smilesParser.parseSmiles(smiles);
-			StructureDiagramGenerator sdg = new StructureDiagramGenerator();
-			sdg.setMolecule(molecule);
-			sdg.generateCoordinates();
-			molecule = sdg.getMolecule();
+			molecule = tools.smilesParser.parseSmiles(smiles);
+			if (layout) {
+				StructureDiagramGenerator sdg = tools.structureDiagramGenerator;
+				sdg.setMolecule(molecule);
+				sdg.generateCoordinates();
+				molecule = sdg.getMolecule();
+			}
 
 			for (IAtom atom : molecule.atoms()) {
 				if (atom instanceof IPseudoAtom) {
@@ -460,6 +1251,70 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 		rGrp.setSymbol("R");
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If both molecules have 2D coordinates, the second molecule is moved as a rigid template so that its atom
+	 * takes the place of the first R group and its R group bond points along the first R group bond. Only the
+	 * junction is positioned, the coordinates within each molecule are kept. With the incremental layout enabled,
+	 * a molecule without coordinates is laid out on its own first.
+	 */
+	@Override
+	public AbstractMolecule merge(AbstractMolecule firstContainer, IAtomBase firstRgroup,
+			AbstractMolecule secondContainer, IAtomBase secondRgroup) throws CTKException {
+		if (firstContainer != secondContainer && firstContainer instanceof CDKMolecule
+				&& secondContainer instanceof CDKMolecule && firstRgroup.getIBondCount() == 1
+				&& secondRgroup.getIBondCount() == 1) {
+			CDKMolecule first = (CDKMolecule) firstContainer;
+			CDKMolecule second = (CDKMolecule) secondContainer;
+			if (incrementalLayout || (first.hasCoordinates() && second.hasCoordinates())) {
+				// the checks of the merge run before any layout, a rejected merge leaves both monomers as they were
+				if (first.isSingleStereo(firstRgroup) && second.isSingleStereo(secondRgroup))
+					throw new CTKException("Both R atoms are connected to chiral centers");
+				first.dearomatize();
+				second.dearomatize();
+				IAtomBase atom1 = getNeighborAtom(firstRgroup);
+				IAtomBase atom2 = getNeighborAtom(secondRgroup);
+				if (incrementalLayout) {
+					if (!first.hasCoordinates())
+						first.generateCoordinates(2);
+					if (!second.hasCoordinates())
+						second.generateCoordinates(2);
+				}
+				if (first.hasCoordinates() && second.hasCoordinates()) {
+					second.placeAt((IAtom) secondRgroup.getMolAtom(), (IAtom) atom2.getMolAtom(),
+							(IAtom) firstRgroup.getMolAtom(), (IAtom) atom1.getMolAtom());
+				}
+			}
+		}
+		return super.merge(firstContainer, firstRgroup, secondContainer, secondRgroup);
+	}
+
+	/**
+	 * assembles a polymer from all its monomers and connections in one pass. Each connection is handled like
+	 * {@link #merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)}: both R atoms are removed, the atoms
+	 * they were bound to are joined and a tetrahedral center at the junction keeps its configuration. The remaining
+	 * attachments are numbered in the order of the monomers. Instead of one merge per connection, every atom, bond
+	 * and stereo element is visited once and the container is built with its final size, so the cost grows linearly
+	 * with the polymer.
+	 * <p>
+	 * The monomers are used up, their atoms become part of the polymer. If all monomers have 2D coordinates, they
+	 * are placed at the junctions as rigid templates.
+	 *
+	 * @param monomers
+	 *            distinct molecules as returned by {@link #getMolecule(String, AttachmentList)}
+	 * @param connections
+	 *            R group pairs to join, monomers are referred to by their index in the list
+	 * @return the polymer
+	 * @throws CTKException
+	 *             if a connection refers to a missing or already joined R group or both R atoms of a connection are
+	 *             connected to chiral centers
+	 */
+	public AbstractMolecule assemble(List<? extends AbstractMolecule> monomers, List<MonomerConnection> connections)
+			throws CTKException {
+		return PolymerAssembler.assemble(monomers, connections);
+	}
+
 	@Override
 	protected IBondBase bindAtoms(IAtomBase atom1, IAtomBase atom2) throws CTKException {
 		IBondBase bond = null;
@@ -545,6 +1400,8 @@ public class CDKManipulator extends AbstractChemistryManipulator {
 			result = molecule2Smiles(molecule);
 			break;
 		case MOLFILE:
+			if (container instanceof CDKMolecule && !((CDKMolecule) container).hasCoordinates())
+				container.generateCoordinates(2);
 			result = molecule2Molfile(molecule);
 		default:
 			break;
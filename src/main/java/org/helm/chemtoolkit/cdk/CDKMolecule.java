@@ -16,10 +16,17 @@
  ******************************************************************************/
 package org.helm.chemtoolkit.cdk;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.vecmath.Point2d;
+
 import org.helm.chemtoolkit.AbstractMolecule;
 import org.helm.chemtoolkit.AttachmentList;
 import org.helm.chemtoolkit.CTKException;
@@ -31,6 +38,8 @@ import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObject;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
 import org.openscience.cdk.interfaces.IPseudoAtom;
 import org.openscience.cdk.interfaces.IStereoElement;
 import org.openscience.cdk.layout.StructureDiagramGenerator;
@@ -46,6 +55,23 @@ public class CDKMolecule extends AbstractMolecule {
 
   private IAtomContainer molecule;
 
+  // true if every atom has 2D coordinates
+  private boolean hasCoordinates;
+
+  // every atom of the container by identity, mapped to its wrapper once one has been created
+  private final Map<IAtom, CDKAtom> wrappers;
+
+  // connected bonds of every atom, built when a wrapper needs its bonds and dropped when the graph changes
+  private Map<IAtom, List<IBond>> connectedBonds;
+
+  private final List<IBondBase> bondList = new BondList();
+
+  // set while bonds without kekule order may have been added through this wrapper, cleared by dearomatize
+  private boolean needsKekulization = true;
+
+  // atom wrappers by R group number, in the order they were indexed
+  private final Map<Integer, List<CDKAtom>> rGroupIndex = new HashMap<>();
+
   public CDKMolecule(IAtomContainer molecule) {
     this(molecule, new AttachmentList());
 
@@ -57,42 +83,230 @@ public class CDKMolecule extends AbstractMolecule {
       setAttachments(attachments);
     else
       this.attachments = new AttachmentList();
-    atoms = new ArrayList<>();
+    atoms = new AtomList();
+    wrappers = new IdentityHashMap<>(molecule.getAtomCount());
+
+    // only the R group atoms are wrapped up front, the other wrappers are created when they are asked for
+    Map<IAtom, List<IBond>> rGroupBonds = new IdentityHashMap<>();
+    hasCoordinates = true;
     for (IAtom atom : molecule.atoms()) {
-      int rGroupId = 0;
+      if (atom.getPoint2d() == null)
+        hasCoordinates = false;
+      wrappers.put(atom, null);
       if (atom instanceof IPseudoAtom) {
         atom.setSymbol("R");
-        rGroupId = AbstractMolecule.getIdFromLabel(((IPseudoAtom) atom).getLabel());
+        rGroupBonds.put(atom, new ArrayList<IBond>(1));
+      }
+    }
+    if (!rGroupBonds.isEmpty()) {
+      for (IBond bond : molecule.bonds()) {
+        for (IAtom atom : bond.atoms()) {
+          if (atom instanceof IPseudoAtom && rGroupBonds.containsKey(atom)) {
+            rGroupBonds.get(atom).add(bond);
+          }
+        }
+      }
+      for (IAtom atom : molecule.atoms()) {
+        if (atom instanceof IPseudoAtom) {
+          int rGroupId = AbstractMolecule.getIdFromLabel(((IPseudoAtom) atom).getLabel());
+          CDKAtom wrapper = new CDKAtom(atom, rGroupId, rGroupBonds.get(atom));
+          wrappers.put(atom, wrapper);
+          index(wrapper);
+        }
       }
-      List<IBond> bonds = molecule.getConnectedBondsList(atom);
-      atoms.add(new CDKAtom(atom, rGroupId, bonds));
     }
 
   }
 
   /**
-   * 
+   * live view of the atoms of the container, the wrappers are created on first access
+   */
+  private class AtomList extends AbstractList<IAtomBase> {
+
+    @Override
+    public IAtomBase get(int index) {
+      return getAtom(molecule.getAtom(index));
+    }
+
+    @Override
+    public int size() {
+      return molecule.getAtomCount();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof CDKAtom && wrappers.get(((CDKAtom) o).atom) == o;
+    }
+
+  }
+
+  /**
+   * live view of the bonds of the container
+   */
+  private class BondList extends AbstractList<IBondBase> {
+
+    @Override
+    public IBondBase get(int index) {
+      IBond bond = molecule.getBond(index);
+      return new CDKBond(bond, getAtom(bond.getAtom(0)));
+    }
+
+    @Override
+    public int size() {
+      return molecule.getBondCount();
+    }
+
+  }
+
+  /**
    * {@inheritDoc}
+   * <p>
+   * Built from the R group index of this molecule, the atoms are not searched.
    */
   @Override
   public Map<String, IAtomBase> getRgroups() throws CTKException {
-    return super.getRgroups();
+    Map<String, IAtomBase> result = new HashMap<>();
+    for (Map.Entry<Integer, List<CDKAtom>> entry : rGroupIndex.entrySet()) {
+      List<CDKAtom> group = entry.getValue();
+      result.put("R" + entry.getKey(), group.get(group.size() - 1));
+    }
+    return result;
   }
 
   /**
-   * 
    * {@inheritDoc}
+   * <p>
+   * Looked up in constant time in the R group index of this molecule.
+   */
+  @Override
+  public IAtomBase getRGroupAtom(int groupId, boolean rgatom) throws CTKException {
+    CDKAtom atom = getRgroupAtom(groupId);
+    if (atom == null || rgatom) {
+      return atom;
+    }
+    IBondBase bond = atom.getIBond(0);
+    return bond.getIAtom1().compare(atom) ? bond.getIAtom2() : bond.getIAtom1();
+  }
+
+  /**
+   * @param rGroup R group number
+   * @return the R group atom with the given number, the last indexed one if there are several, or null
+   */
+  CDKAtom getRgroupAtom(int rGroup) {
+    List<CDKAtom> group = rGroupIndex.get(rGroup);
+    return group == null ? null : group.get(group.size() - 1);
+  }
+
+  private void index(CDKAtom atom) {
+    atom.owner = this;
+    if (atom.rGroup > 0) {
+      List<CDKAtom> group = rGroupIndex.get(atom.rGroup);
+      if (group == null) {
+        group = new ArrayList<>(1);
+        rGroupIndex.put(atom.rGroup, group);
+      }
+      group.add(atom);
+    }
+  }
+
+  private void unindex(CDKAtom atom, int rGroup) {
+    List<CDKAtom> group = rGroupIndex.get(rGroup);
+    if (group != null) {
+      for (int i = group.size() - 1; i >= 0; i--) {
+        if (group.get(i) == atom) {
+          group.remove(i);
+          break;
+        }
+      }
+      if (group.isEmpty()) {
+        rGroupIndex.remove(rGroup);
+      }
+    }
+  }
+
+  /**
+   * moves an atom wrapper of this molecule to its new R group number, called by {@link CDKAtom#setRgroup(int)}
+   * 
+   * @param atom atom wrapper
+   * @param previous R group number before the change
    */
+  void rGroupChanged(CDKAtom atom, int previous) {
+    unindex(atom, previous);
+    index(atom);
+  }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The container is kekulized again only if a molecule or a bond without order has been added through
+   * {@link #addIBase(IChemObjectBase)} since the last call, so merging a kekulized monomer into a polymer costs no
+   * pass over the polymer. Changes made directly to the container of {@link #getMolecule()} are not seen.
+   */
   @Override
   public void dearomatize() throws CTKException {
-
+    if (!needsKekulization) {
+      return;
+    }
     try {
       Kekulization.kekulize(molecule);
     } catch (CDKException e) {
       throw new CTKException(e.getMessage(), e);
     }
+    needsKekulization = false;
+  }
+
+  /**
+   * returns the wrapper of a CDK atom of this molecule in constant time, it is created on first access
+   * 
+   * @param atom CDK atom
+   * @return the wrapper or null if the atom is not part of this molecule
+   */
+  CDKAtom getAtom(IAtom atom) {
+    CDKAtom wrapper = wrappers.get(atom);
+    if (wrapper == null && wrappers.containsKey(atom)) {
+      wrapper = new CDKAtom(atom, 0, this);
+      wrappers.put(atom, wrapper);
+    }
+    return wrapper;
+  }
+
+  /**
+   * returns the bonds of an atom of this molecule, the bonds of all atoms are collected in one pass on the first call
+   * after a change, {@link IAtomContainer#getConnectedBondsList(IAtom)} scans all bonds for every atom
+   * 
+   * @param atom CDK atom
+   * @return connected bonds
+   */
+  List<IBond> getConnectedBonds(IAtom atom) {
+    if (connectedBonds == null) {
+      connectedBonds = new IdentityHashMap<>(wrappers.size());
+      for (IBond bond : molecule.bonds()) {
+        for (IAtom end : bond.atoms()) {
+          List<IBond> bonds = connectedBonds.get(end);
+          if (bonds == null) {
+            bonds = new ArrayList<>(4);
+            connectedBonds.put(end, bonds);
+          }
+          bonds.add(bond);
+        }
+      }
+    }
+    List<IBond> bonds = connectedBonds.get(atom);
+    return bonds == null ? Collections.<IBond> emptyList() : bonds;
+  }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Only wrappers which have been created can carry a flag, the others are left alone.
+   */
+  @Override
+  public void clearFlags() {
+    for (CDKAtom atom : wrappers.values()) {
+      if (atom != null) {
+        atom.setFlag(Flag.NONE);
+      }
+    }
   }
 
   /**
@@ -102,14 +316,14 @@ public class CDKMolecule extends AbstractMolecule {
   @Override
   public void removeINode(IAtomBase node) throws CTKException {
     if (node instanceof CDKAtom) {
-      if (atoms.contains(node)) {
-        molecule.removeAtomAndConnectedElectronContainers(((CDKAtom) node).atom);
-
-        for (int i = 0; i < atoms.size(); i++) {
-          if (((CDKAtom) atoms.get(i)).compare(node)) {
-            atoms.remove(i);
-            break;
-          }
+      IAtom atom = ((CDKAtom) node).atom;
+      if (wrappers.containsKey(atom)) {
+        CDKAtom removed = wrappers.remove(atom);
+        molecule.removeAtomAndConnectedElectronContainers(atom);
+        connectedBonds = null;
+        if (removed != null) {
+          unindex(removed, removed.rGroup);
+          removed.owner = null;
         }
       } else
         throw new CTKException("the atom not found in the molecule");
@@ -127,32 +341,46 @@ public class CDKMolecule extends AbstractMolecule {
     if (object instanceof CDKMolecule) {
       CDKMolecule container = (CDKMolecule) object;
       molecule.add(container.getMolecule());
-      atoms.addAll(container.getIAtomArray());
+      connectedBonds = null;
+      for (Map.Entry<IAtom, CDKAtom> entry : container.wrappers.entrySet()) {
+        wrappers.put(entry.getKey(), entry.getValue());
+        if (entry.getValue() != null) {
+          index(entry.getValue());
+        }
+      }
+      hasCoordinates &= container.hasCoordinates();
+      needsKekulization |= container.needsKekulization;
     } else if (object instanceof CDKAtom) {
       CDKAtom atom = (CDKAtom) object;
       molecule.addAtom(atom.getMolAtom());
-      atoms.add(atom);
+      wrappers.put(atom.getMolAtom(), atom);
+      index(atom);
+      hasCoordinates &= atom.getMolAtom().getPoint2d() != null;
     } else if (object instanceof CDKBond) {
-      molecule.addBond(((CDKBond) object).bond);
+      addBond(((CDKBond) object).bond);
     } else if (object instanceof CDKStereoElement) {
       molecule.addStereoElement(((CDKStereoElement) object).getStereoElement());
-      molecule.addBond(((CDKStereoElement) object).getBond());
+      addBond(((CDKStereoElement) object).getBond());
     }
 
   }
 
+  private void addBond(IBond bond) {
+    molecule.addBond(bond);
+    connectedBonds = null;
+    if (bond != null && (bond.getOrder() == null || bond.getOrder() == IBond.Order.UNSET || bond.isAromatic())) {
+      needsKekulization = true;
+    }
+  }
+
   /**
-   * 
    * {@inheritDoc}
+   * <p>
+   * A live view of the bonds of the container, like {@link #getIAtomArray()} for the atoms.
    */
   @Override
   public List<IBondBase> getIBondArray() {
-    List<IBondBase> array = new ArrayList<>();
-
-    for (IBond item : molecule.bonds()) {
-      array.add(new CDKBond(item));
-    }
-    return array;
+    return bondList;
   }
 
   /**
@@ -161,13 +389,67 @@ public class CDKMolecule extends AbstractMolecule {
    */
   @Override
   public AbstractMolecule cloneMolecule() throws CTKException {
-    CDKMolecule cloned = null;
+    CDKMolecule cloned = new CDKMolecule(cloneContainer(molecule), attachments.cloneList());
+    cloned.needsKekulization = needsKekulization;
+    return cloned;
+  }
+
+  /**
+   * deep copy of a container in linear time, {@link IAtomContainer#clone()} looks up both atoms of every bond by a
+   * linear search
+   * 
+   * @param container given container
+   * @return the copy
+   * @throws CTKException if an atom, bond or the container cannot be cloned
+   */
+  static IAtomContainer cloneContainer(IAtomContainer container) throws CTKException {
     try {
-      cloned = new CDKMolecule(molecule.clone(), attachments.cloneList());
+      if (container.getLonePairCount() > 0 || container.getSingleElectronCount() > 0) {
+        return container.clone();
+      }
+      // one map for atoms and bonds, IStereoElement.map(Map, Map) merges both into a new map for every element
+      Map<IChemObject, IChemObject> map =
+          new IdentityHashMap<>(2 * (container.getAtomCount() + container.getBondCount()));
+      IAtom[] atoms = new IAtom[container.getAtomCount()];
+      int i = 0;
+      for (IAtom atom : container.atoms()) {
+        atoms[i] = atom.clone();
+        map.put(atom, atoms[i++]);
+      }
+      // IBond.clone() clones both end atoms again, the bonds are built on the cloned atoms instead
+      IChemObjectBuilder builder = container.getBuilder();
+      IBond[] bonds = new IBond[container.getBondCount()];
+      i = 0;
+      for (IBond bond : container.bonds()) {
+        IAtom[] ends = new IAtom[bond.getAtomCount()];
+        for (int j = 0; j < ends.length; j++) {
+          ends[j] = (IAtom) map.get(bond.getAtom(j));
+        }
+        bonds[i] = builder.newInstance(IBond.class, ends, bond.getOrder());
+        bonds[i].setStereo(bond.getStereo());
+        bonds[i].setElectronCount(bond.getElectronCount());
+        bonds[i].setFlags(bond.getFlags());
+        bonds[i].setID(bond.getID());
+        if (!bond.getProperties().isEmpty()) {
+          bonds[i].setProperties(bond.getProperties());
+        }
+        map.put(bond, bonds[i++]);
+      }
+      List<IStereoElement> stereoElements = new ArrayList<>();
+      for (IStereoElement<?, ?> element : container.stereoElements()) {
+        stereoElements.add(element.map(map));
+      }
+
+      IAtomContainer copy = builder.newInstance(IAtomContainer.class);
+      copy.setAtoms(atoms);
+      copy.setBonds(bonds);
+      copy.setStereoElements(stereoElements);
+      copy.setProperties(container.getProperties());
+      copy.setFlags(container.getFlags());
+      return copy;
     } catch (CloneNotSupportedException e) {
       throw new CTKException(e.getMessage(), e);
     }
-    return cloned;
   }
 
   /**
@@ -178,13 +460,132 @@ public class CDKMolecule extends AbstractMolecule {
   @Override
   public void generateCoordinates(int dem) throws CTKException {
 
-    StructureDiagramGenerator sdg = new StructureDiagramGenerator();
+    StructureDiagramGenerator sdg = CDKTools.get().structureDiagramGenerator;
     sdg.setMolecule(molecule, false);
     try {
       sdg.generateCoordinates();
     } catch (CDKException e) {
       throw new CTKException(e.getMessage(), e);
     }
+    hasCoordinates = true;
+  }
+
+  /**
+   * @return the 2D coordinates of all atoms as x, y pairs in atom order
+   */
+  double[] getCoordinates() {
+    double[] coordinates = new double[2 * molecule.getAtomCount()];
+    int i = 0;
+    for (IAtom atom : molecule.atoms()) {
+      Point2d point = atom.getPoint2d();
+      coordinates[i++] = point.x;
+      coordinates[i++] = point.y;
+    }
+    return coordinates;
+  }
+
+  /**
+   * sets the 2D coordinates of all atoms
+   * 
+   * @param coordinates x, y pairs in atom order
+   */
+  void setCoordinates(double[] coordinates) {
+    int i = 0;
+    for (IAtom atom : molecule.atoms()) {
+      atom.setPoint2d(new Point2d(coordinates[i], coordinates[i + 1]));
+      i += 2;
+    }
+    hasCoordinates = true;
+  }
+
+  /**
+   * moves the whole molecule by rotation, scaling and translation, so that the given atom lands on the target R
+   * group and its R group lies on the target atom. Reflection is avoided, wedge bonds keep their meaning.
+   * 
+   * @param rGroup R group of this molecule
+   * @param atom atom of this molecule bound to the R group
+   * @param targetRgroup R group to replace by the atom
+   * @param targetAtom atom the R group points to
+   */
+  void placeAt(IAtom rGroup, IAtom atom, IAtom targetRgroup, IAtom targetAtom) {
+    Point2d origin = atom.getPoint2d();
+    Point2d destination = targetRgroup.getPoint2d();
+    double ux = rGroup.getPoint2d().x - origin.x;
+    double uy = rGroup.getPoint2d().y - origin.y;
+    double vx = targetAtom.getPoint2d().x - destination.x;
+    double vy = targetAtom.getPoint2d().y - destination.y;
+    double lengthU = Math.hypot(ux, uy);
+    double lengthV = Math.hypot(vx, vy);
+    if (lengthU == 0 || lengthV == 0) {
+      return;
+    }
+    double scale = lengthV / lengthU;
+    double angle = Math.atan2(vy, vx) - Math.atan2(uy, ux);
+    double cos = scale * Math.cos(angle);
+    double sin = scale * Math.sin(angle);
+    double ox = origin.x;
+    double oy = origin.y;
+
+    for (IAtom item : molecule.atoms()) {
+      Point2d point = item.getPoint2d();
+      double x = point.x - ox;
+      double y = point.y - oy;
+      item.setPoint2d(new Point2d(destination.x + cos * x - sin * y, destination.y + sin * x + cos * y));
+    }
+  }
+
+  /**
+   * returns the size of the binary encoding of this molecule, see {@link #writeTo(ByteBuffer)}
+   * 
+   * @return number of bytes
+   */
+  public int getEncodedSize() {
+    return MoleculeCodec.sizeOf(this);
+  }
+
+  /**
+   * writes the versioned binary encoding of this molecule at the position of the buffer. The encoding keeps atoms,
+   * bond orders, aromaticity, stereo elements, R group labels, coordinates and attachments as they are and is read
+   * back by {@link #readFrom(ByteBuffer)} without parsing or perception.
+   * 
+   * @param buffer target buffer with at least {@link #getEncodedSize()} bytes remaining
+   * @throws CTKException if the molecule has a stereo element which cannot be encoded
+   * @throws java.nio.BufferOverflowException if the buffer is too small
+   */
+  public void writeTo(ByteBuffer buffer) throws CTKException {
+    MoleculeCodec.write(this, buffer);
+  }
+
+  /**
+   * @return a new heap buffer holding the binary encoding of this molecule, ready to be read
+   * @throws CTKException if the molecule has a stereo element which cannot be encoded
+   */
+  public ByteBuffer toByteBuffer() throws CTKException {
+    ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+    writeTo(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * reads a molecule written by {@link #writeTo(ByteBuffer)} from the position of the buffer and moves the position
+   * behind it
+   * 
+   * @param buffer source buffer
+   * @return a new molecule
+   * @throws CTKException if the data is not a valid encoding or has an unsupported version
+   */
+  public static CDKMolecule readFrom(ByteBuffer buffer) throws CTKException {
+    return MoleculeCodec.read(buffer);
+  }
+
+  /**
+   * molecules parsed from smiles have no coordinates until an operation needs them, e.g. molfile output
+   * 
+   * @return true if every atom has 2D coordinates
+   */
+  public boolean hasCoordinates() {
+    return hasCoordinates;
   }
 
   /**
@@ -202,12 +603,14 @@ public class CDKMolecule extends AbstractMolecule {
    */
   @Override
   public void changeAtomLabel(int index, int toIndex) throws CTKException {
-    for (IAtomBase atom : getIAtomArray()) {
-      if (atom.getFlag() != Flag.PROCESSED && atom.getMolAtom() instanceof IPseudoAtom) {
-        int currIndex = AbstractMolecule.getIdFromLabel(((IPseudoAtom) atom.getMolAtom()).getLabel());
-        if (currIndex == index)
-          atom.setRgroup(toIndex);
-      }
+    List<CDKAtom> group = rGroupIndex.get(index);
+    if (group == null) {
+      return;
+    }
+    // setRgroup moves the atoms to another group
+    for (CDKAtom atom : new ArrayList<>(group)) {
+      if (atom.getFlag() != Flag.PROCESSED && atom.getMolAtom() instanceof IPseudoAtom)
+        atom.setRgroup(toIndex);
     }
 
   }
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.atomtype.CDKAtomTypeMatcher;
+import org.openscience.cdk.fingerprint.Fingerprinter;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+import org.openscience.cdk.layout.StructureDiagramGenerator;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
+import org.openscience.cdk.smiles.SmilesParser;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+
+/**
+ * {@code CDKTools} the CDK parsers, generators and perception tools and the image writers used by the manipulator.
+ * Most of them are not safe for concurrent use, so every thread gets its own set which is reused for all its calls.
+ * The atom type matcher and the hydrogen adder are the exception: CDK returns one shared instance per builder, which
+ * is safe for concurrent use.
+ */
+final class CDKTools {
+
+  private static final ThreadLocal<CDKTools> TOOLS = new ThreadLocal<CDKTools>() {
+    @Override
+    protected CDKTools initialValue() {
+      return new CDKTools();
+    }
+  };
+
+  final IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+
+  final SmilesParser smilesParser = new SmilesParser(builder);
+
+  final SmilesGenerator isomericGenerator = SmilesGenerator.isomeric();
+
+  // includes stereochemistry but no isotopes, CXSMILES labels (e.g. |$R1;R2$|) would need '+ SmiFlavor.CxAtomLabel'
+  final SmilesGenerator canonicalGenerator = new SmilesGenerator(SmiFlavor.Canonical + SmiFlavor.Stereo);
+
+  final SmilesGenerator atomMappingGenerator =
+      new SmilesGenerator(SmiFlavor.CxSmiles + SmiFlavor.Canonical + SmiFlavor.Stereo);
+
+  // canonical smiles with stereo and isotopes, for keys that must tell labelled structures apart
+  final SmilesGenerator isomericCanonicalGenerator = new SmilesGenerator(SmiFlavor.Canonical | SmiFlavor.Isomeric);
+
+  final Aromaticity aromaticity = new Aromaticity(ElectronDonation.cdk(), Cycles.cdkAromaticSet());
+
+  // needs no atom types, used where structures from smiles and molfiles are compared
+  final Aromaticity daylightAromaticity =
+      new Aromaticity(ElectronDonation.daylight(), Cycles.or(Cycles.all(), Cycles.all(6)));
+
+  final Fingerprinter fingerprinter = new Fingerprinter(SubstructureIndex.FINGERPRINT_SIZE);
+
+  // shared by all threads, see the class comment
+  final CDKAtomTypeMatcher atomTypeMatcher = CDKAtomTypeMatcher.getInstance(builder);
+
+  final CDKHydrogenAdder hydrogenAdder = CDKHydrogenAdder.getInstance(builder);
+
+  final StructureDiagramGenerator structureDiagramGenerator = new StructureDiagramGenerator();
+
+  private final Map<String, ImageWriter> imageWriters = new HashMap<>();
+
+  private CDKTools() {
+    // the path count grows with the size of polymers, the default limit rejects long chains
+    fingerprinter.setPathLimit(Integer.MAX_VALUE);
+  }
+
+  /**
+   * returns the image writer of this thread for the given format, the caller resets it after use
+   *
+   * @param format image format name
+   * @return the writer or null if the format is not supported
+   */
+  ImageWriter getImageWriter(String format) {
+    String key = format.toLowerCase(Locale.ROOT);
+    ImageWriter writer = imageWriters.get(key);
+    if (writer == null) {
+      Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(key);
+      if (!writers.hasNext()) {
+        return null;
+      }
+      writer = writers.next();
+      imageWriters.put(key, writer);
+    }
+    return writer;
+  }
+
+  /**
+   * @return the tools of the current thread
+   */
+  static CDKTools get() {
+    return TOOLS.get();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
+
+/**
+ * {@code FormatDetector} tells SMILES and MDL molfile input apart from the text structure alone, without parsing it.
+ * A (CX)SMILES, optionally followed by a title, is a single line while a molfile has at least a header block and a
+ * counts line.
+ */
+public final class FormatDetector {
+
+  private FormatDetector() {
+  }
+
+  /**
+   * detects the format of the given structure
+   *
+   * @param data smiles or molfile
+   * @return {@link StType#MOLFILE} if the data spans several lines, {@link StType#SMILES} otherwise
+   */
+  public static StType detect(String data) {
+    int end = data.length();
+    while (end > 0 && Character.isWhitespace(data.charAt(end - 1))) {
+      end--;
+    }
+    for (int i = 0; i < end; i++) {
+      char c = data.charAt(i);
+      if (c == '\n' || c == '\r') {
+        return StType.MOLFILE;
+      }
+    }
+    return StType.SMILES;
+  }
+
+}
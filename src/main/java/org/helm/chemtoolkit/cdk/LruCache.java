@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@code LruCache} a size-bounded, least recently used cache which keeps hit, miss and eviction counts. Each entry
+ * has a weight of one unless {@link #weigh(Object)} is overridden, the cache never holds more than its capacity in
+ * weight units. All methods are synchronized, the cache can be shared between threads.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V> {
+
+  private final long capacity;
+
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long weight;
+
+  private long hitCount;
+
+  private long missCount;
+
+  private long evictionCount;
+
+  /**
+   * @param capacity maximum total weight of the cached entries
+   */
+  public LruCache(long capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * returns the weight of the given value, one by default
+   *
+   * @param value cached value
+   * @return weight of the value
+   */
+  protected long weigh(V value) {
+    return 1;
+  }
+
+  /**
+   * returns the cached value and marks it as recently used
+   *
+   * @param key given key
+   * @return cached value or null
+   */
+  public synchronized V get(K key) {
+    V value = entries.get(key);
+    if (value != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return value;
+  }
+
+  /**
+   * stores a value, evicting least recently used entries if the capacity is exceeded. A value heavier than the whole
+   * capacity is not stored.
+   *
+   * @param key given key
+   * @param value value to cache
+   */
+  public synchronized void put(K key, V value) {
+    long valueWeight = weigh(value);
+    if (valueWeight > capacity) {
+      return;
+    }
+    V previous = entries.put(key, value);
+    if (previous != null) {
+      weight -= weigh(previous);
+    }
+    weight += valueWeight;
+
+    Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+    while (weight > capacity && iterator.hasNext()) {
+      Map.Entry<K, V> eldest = iterator.next();
+      weight -= weigh(eldest.getValue());
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  /**
+   * removes all entries, the counters are kept
+   */
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  /**
+   * @return number of cached entries
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return maximum total weight
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return current total weight of the cached entries
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return number of lookups which found a value
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return number of lookups which found nothing
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * @return number of entries removed to respect the capacity
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return ratio of hits to all lookups, 0 if there was no lookup yet
+   */
+  public synchronized double getHitRatio() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 0 : (double) hitCount / requests;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "LruCache[size=" + entries.size() + ", weight=" + weight + "/" + capacity + ", hits=" + hitCount
+        + ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+  }
+
+}
@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point2d;
+
+import org.helm.chemtoolkit.Attachment;
+import org.helm.chemtoolkit.AttachmentList;
+import org.helm.chemtoolkit.CTKException;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.config.Elements;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IAtomType.Hybridization;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObject;
+import org.openscience.cdk.interfaces.IPseudoAtom;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.silent.Atom;
+import org.openscience.cdk.silent.AtomContainer;
+import org.openscience.cdk.silent.Bond;
+import org.openscience.cdk.silent.PseudoAtom;
+import org.openscience.cdk.stereo.DoubleBondStereochemistry;
+import org.openscience.cdk.stereo.ExtendedTetrahedral;
+import org.openscience.cdk.stereo.TetrahedralChirality;
+
+/**
+ * {@code MoleculeCodec} the binary encoding of a {@link CDKMolecule}: atoms with element, charge, hydrogen count, mass
+ * number, atom type, aromaticity, R group label, atom map number and 2D coordinates, bonds with order, aromaticity and
+ * wedge, the tetrahedral, extended tetrahedral and double bond stereo elements and the attachment list. Atoms, bonds
+ * and enum constants are stored by index, restoring a molecule needs neither parsing nor perception. The encoding
+ * starts with its {@link #VERSION}, a change of the layout or of the stored CDK enums needs a new version.
+ */
+final class MoleculeCodec {
+
+  /** format version, the first byte of every encoded molecule */
+  static final byte VERSION = 1;
+
+  private static final int AROMATIC = 1;
+
+  private static final int PSEUDO = 2;
+
+  private static final int POINT = 4;
+
+  private static final int CHARGE = 8;
+
+  private static final int HYDROGENS = 16;
+
+  private static final int MASS = 32;
+
+  private static final int MAPPED = 64;
+
+  private static final Hybridization[] HYBRIDIZATIONS = Hybridization.values();
+
+  private static final IBond.Order[] ORDERS = IBond.Order.values();
+
+  private static final IBond.Stereo[] STEREOS = IBond.Stereo.values();
+
+  private MoleculeCodec() {
+  }
+
+  /**
+   * returns the number of bytes {@link #write(CDKMolecule, ByteBuffer)} needs for the given molecule
+   *
+   * @param molecule given molecule
+   * @return encoded size in bytes
+   */
+  static int sizeOf(CDKMolecule molecule) {
+    IAtomContainer container = molecule.getMolecule();
+    int size = 17;
+    for (IAtom atom : container.atoms()) {
+      size += 7 + sizeOf(atom.getAtomTypeName());
+      if (atom instanceof IPseudoAtom) {
+        size += sizeOf(((IPseudoAtom) atom).getLabel());
+      }
+      if (atom.getPoint2d() != null) {
+        size += 16;
+      }
+      if (atom.getProperty(CDKConstants.ATOM_ATOM_MAPPING) != null) {
+        size += 4;
+      }
+    }
+    size += 11 * container.getBondCount();
+    for (IStereoElement element : container.stereoElements()) {
+      size += 9 + 4 * element.getCarriers().size();
+    }
+    for (Attachment attachment : molecule.getAttachments()) {
+      size += sizeOf(attachment.getId()) + sizeOf(attachment.getLabel()) + sizeOf(attachment.getName())
+          + sizeOf(attachment.getSmiles());
+    }
+    return size;
+  }
+
+  /**
+   * encodes a molecule at the position of the buffer
+   *
+   * @param molecule given molecule
+   * @param buffer target buffer with at least {@link #sizeOf(CDKMolecule)} bytes remaining
+   * @throws CTKException if the molecule has a stereo element which cannot be encoded
+   */
+  static void write(CDKMolecule molecule, ByteBuffer buffer) throws CTKException {
+    IAtomContainer container = molecule.getMolecule();
+    Map<IChemObject, Integer> indices =
+        new IdentityHashMap<>(2 * (container.getAtomCount() + container.getBondCount()));
+
+    buffer.put(VERSION);
+    buffer.putInt(container.getAtomCount());
+    buffer.putInt(container.getBondCount());
+    List<IStereoElement> elements = new ArrayList<>();
+    for (IStereoElement element : container.stereoElements()) {
+      elements.add(element);
+    }
+    buffer.putInt(elements.size());
+    buffer.putInt(molecule.getAttachments().size());
+
+    int index = 0;
+    for (IAtom atom : container.atoms()) {
+      indices.put(atom, index++);
+      Point2d point = atom.getPoint2d();
+      Integer charge = atom.getFormalCharge();
+      Integer hydrogens = atom.getImplicitHydrogenCount();
+      Integer mass = atom.getMassNumber();
+      Integer mapping = atom.getProperty(CDKConstants.ATOM_ATOM_MAPPING);
+      int flags = (atom.isAromatic() ? AROMATIC : 0) | (atom instanceof IPseudoAtom ? PSEUDO : 0)
+          | (point != null ? POINT : 0) | (charge != null ? CHARGE : 0) | (hydrogens != null ? HYDROGENS : 0)
+          | (mass != null ? MASS : 0) | (mapping != null ? MAPPED : 0);
+      Integer atomicNumber = atom.getAtomicNumber();
+      Hybridization hybridization = atom.getHybridization();
+
+      buffer.put((byte) flags);
+      buffer.put((byte) (atomicNumber != null ? atomicNumber : 0));
+      buffer.put((byte) (charge != null ? charge : 0));
+      buffer.put((byte) (hydrogens != null ? hydrogens : 0));
+      buffer.putShort((short) (mass != null ? mass : 0));
+      buffer.put((byte) (hybridization != null ? hybridization.ordinal() + 1 : 0));
+      putString(buffer, atom.getAtomTypeName());
+      if (atom instanceof IPseudoAtom) {
+        putString(buffer, ((IPseudoAtom) atom).getLabel());
+      }
+      if (point != null) {
+        buffer.putDouble(point.x);
+        buffer.putDouble(point.y);
+      }
+      if (mapping != null) {
+        buffer.putInt(mapping);
+      }
+    }
+
+    index = 0;
+    for (IBond bond : container.bonds()) {
+      indices.put(bond, index++);
+      IBond.Order order = bond.getOrder();
+      IBond.Stereo stereo = bond.getStereo();
+      buffer.putInt(indices.get(bond.getAtom(0)));
+      buffer.putInt(indices.get(bond.getAtom(1)));
+      buffer.put((byte) (order != null ? order.ordinal() + 1 : 0));
+      buffer.put((byte) (bond.isAromatic() ? AROMATIC : 0));
+      buffer.put((byte) (stereo != null ? stereo.ordinal() + 1 : 0));
+    }
+
+    for (IStereoElement element : elements) {
+      int configClass = element.getConfigClass();
+      if (configClass != IStereoElement.TH && configClass != IStereoElement.AL && configClass != IStereoElement.CT) {
+        throw new CTKException("unsupported stereo element " + element);
+      }
+      List<?> carriers = element.getCarriers();
+      buffer.putInt(element.getConfig());
+      buffer.putInt(indices.get(element.getFocus()));
+      buffer.put((byte) carriers.size());
+      for (Object carrier : carriers) {
+        buffer.putInt(indices.get(carrier));
+      }
+    }
+
+    for (Attachment attachment : molecule.getAttachments()) {
+      putString(buffer, attachment.getId());
+      putString(buffer, attachment.getLabel());
+      putString(buffer, attachment.getName());
+      putString(buffer, attachment.getSmiles());
+    }
+  }
+
+  /**
+   * decodes a molecule from the position of the buffer, the position is moved behind it
+   *
+   * @param buffer source buffer
+   * @return a new molecule
+   * @throws CTKException if the data is not a valid encoding
+   */
+  static CDKMolecule read(ByteBuffer buffer) throws CTKException {
+    try {
+      byte version = buffer.get();
+      if (version != VERSION) {
+        throw new CTKException("unsupported molecule encoding version " + version);
+      }
+      int atomCount = buffer.getInt();
+      int bondCount = buffer.getInt();
+      int stereoCount = buffer.getInt();
+      int attachmentCount = buffer.getInt();
+      if (atomCount < 0 || bondCount < 0 || stereoCount < 0 || attachmentCount < 0) {
+        throw new CTKException("invalid molecule encoding");
+      }
+
+      IAtom[] atoms = new IAtom[atomCount];
+      for (int i = 0; i < atomCount; i++) {
+        int flags = buffer.get();
+        int atomicNumber = buffer.get() & 0xff;
+        int charge = buffer.get();
+        int hydrogens = buffer.get();
+        int mass = buffer.getShort();
+        int hybridization = buffer.get();
+        String atomTypeName = getString(buffer);
+
+        IAtom atom;
+        if ((flags & PSEUDO) != 0) {
+          atom = new PseudoAtom(getString(buffer));
+          atom.setSymbol("R");
+        } else {
+          atom = new Atom(Elements.ofNumber(atomicNumber).symbol());
+        }
+        atom.setAtomicNumber(atomicNumber);
+        atom.setAtomTypeName(atomTypeName);
+        atom.setIsAromatic((flags & AROMATIC) != 0);
+        atom.setFormalCharge((flags & CHARGE) != 0 ? charge : null);
+        atom.setImplicitHydrogenCount((flags & HYDROGENS) != 0 ? hydrogens : null);
+        atom.setMassNumber((flags & MASS) != 0 ? mass : null);
+        atom.setHybridization(hybridization != 0 ? HYBRIDIZATIONS[hybridization - 1] : null);
+        if ((flags & POINT) != 0) {
+          atom.setPoint2d(new Point2d(buffer.getDouble(), buffer.getDouble()));
+        }
+        if ((flags & MAPPED) != 0) {
+          atom.setProperty(CDKConstants.ATOM_ATOM_MAPPING, buffer.getInt());
+        }
+        atoms[i] = atom;
+      }
+
+      IBond[] bonds = new IBond[bondCount];
+      for (int i = 0; i < bondCount; i++) {
+        IAtom begin = atoms[buffer.getInt()];
+        IAtom end = atoms[buffer.getInt()];
+        int order = buffer.get();
+        int flags = buffer.get();
+        int stereo = buffer.get();
+        IBond bond = new Bond(begin, end, order != 0 ? ORDERS[order - 1] : IBond.Order.UNSET);
+        bond.setIsAromatic((flags & AROMATIC) != 0);
+        bond.setStereo(stereo != 0 ? STEREOS[stereo - 1] : IBond.Stereo.NONE);
+        bonds[i] = bond;
+      }
+
+      IAtomContainer container = new AtomContainer();
+      container.setAtoms(atoms);
+      container.setBonds(bonds);
+
+      for (int i = 0; i < stereoCount; i++) {
+        int config = buffer.getInt();
+        int focus = buffer.getInt();
+        int carrierCount = buffer.get();
+        switch (config & IStereoElement.CLS_MASK) {
+          case IStereoElement.TH:
+            container.addStereoElement(new TetrahedralChirality(atoms[focus], readAtoms(buffer, atoms, carrierCount),
+                config));
+            break;
+          case IStereoElement.AL:
+            container.addStereoElement(new ExtendedTetrahedral(atoms[focus], readAtoms(buffer, atoms, carrierCount),
+                config));
+            break;
+          case IStereoElement.CT:
+            IBond[] carriers = new IBond[carrierCount];
+            for (int j = 0; j < carrierCount; j++) {
+              carriers[j] = bonds[buffer.getInt()];
+            }
+            container.addStereoElement(new DoubleBondStereochemistry(bonds[focus], carriers, config));
+            break;
+          default:
+            throw new CTKException("invalid stereo element encoding");
+        }
+      }
+
+      AttachmentList attachments = new AttachmentList();
+      for (int i = 0; i < attachmentCount; i++) {
+        attachments.add(new Attachment(getString(buffer), getString(buffer), getString(buffer), getString(buffer)));
+      }
+
+      return new CDKMolecule(container, attachments);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new CTKException("invalid molecule encoding", e);
+    }
+  }
+
+  private static IAtom[] readAtoms(ByteBuffer buffer, IAtom[] atoms, int count) {
+    IAtom[] result = new IAtom[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = atoms[buffer.getInt()];
+    }
+    return result;
+  }
+
+  private static int sizeOf(String value) {
+    return value == null ? 4 : 4 + value.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  private static void putString(ByteBuffer buffer, String value) {
+    if (value == null) {
+      buffer.putInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+
+}
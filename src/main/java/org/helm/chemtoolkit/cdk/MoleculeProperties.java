@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.MoleculeInfo;
+import org.openscience.cdk.config.Elements;
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IIsotope;
+
+/**
+ * {@code MoleculeProperties} the molecular formula, natural and monoisotopic mass and element counts of a molecule,
+ * computed in one pass over its atoms. The values are those of
+ * {@link org.openscience.cdk.tools.manipulator.AtomContainerManipulator#getNaturalExactMass(IAtomContainer)} and of
+ * the Hill formula and major isotope mass of
+ * {@link org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator}, without building a formula object.
+ */
+public final class MoleculeProperties extends MoleculeInfo {
+
+  /** symbols written to the formula, as in the Hill order of MolecularFormulaManipulator */
+  private static final Set<String> FORMULA_SYMBOLS = new HashSet<>();
+
+  // natural mass by atomic number and major isotope mass by symbol, NaN if there is no major isotope
+  private static final Map<Integer, Double> NATURAL_MASSES = new ConcurrentHashMap<>();
+
+  private static final Map<String, Double> MAJOR_ISOTOPE_MASSES = new ConcurrentHashMap<>();
+
+  static {
+    for (int i = 1; i <= 112; i++) {
+      FORMULA_SYMBOLS.add(Elements.ofNumber(i).symbol());
+    }
+    FORMULA_SYMBOLS.add("R");
+  }
+
+  private final Map<String, Integer> elementCounts;
+
+  private MoleculeProperties(double molecularWeight, String molecularFormula, double exactMass,
+      Map<String, Integer> elementCounts) {
+    super(molecularWeight, molecularFormula, exactMass);
+    this.elementCounts = elementCounts;
+  }
+
+  /**
+   * @return number of atoms by symbol including implicit hydrogens, in the order of the formula followed by symbols
+   *         the formula leaves out
+   */
+  public Map<String, Integer> getElementCounts() {
+    return elementCounts;
+  }
+
+  /**
+   * computes the properties of the given molecule
+   *
+   * @param molecule given molecule
+   * @return the properties
+   * @throws CTKException if an atom has no atomic number or implicit hydrogen count
+   */
+  public static MoleculeProperties of(IAtomContainer molecule) throws CTKException {
+    double hydrogenMass = getNaturalMass(1);
+    double naturalMass = 0;
+    // counts in the order the symbols first occur, as the isotopes of a molecular formula
+    Map<String, int[]> counts = new LinkedHashMap<>();
+    for (IAtom atom : molecule.atoms()) {
+      Integer atomicNumber = atom.getAtomicNumber();
+      Integer hydrogens = atom.getImplicitHydrogenCount();
+      if (atomicNumber == null) {
+        throw new CTKException("an atom has no atomic number");
+      }
+      if (hydrogens == null) {
+        throw new CTKException("an atom has no implicit hydrogen count");
+      }
+      naturalMass += getNaturalMass(atomicNumber);
+      naturalMass += hydrogenMass * hydrogens;
+
+      increment(counts, atom.getSymbol(), 1);
+      if (hydrogens > 0) {
+        increment(counts, "H", hydrogens);
+      }
+    }
+
+    double exactMass = 0;
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      double mass = getMajorIsotopeMass(entry.getKey());
+      if (!Double.isNaN(mass)) {
+        exactMass += mass * entry.getValue()[0];
+      }
+    }
+
+    List<String> symbols = new ArrayList<>(counts.keySet());
+    final boolean carbon = counts.containsKey("C");
+    // Hill order: carbon and hydrogen first if there is carbon, the other elements by symbol, R groups last
+    Collections.sort(symbols, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int result = Integer.compare(rank(a), rank(b));
+        return result != 0 ? result : a.compareTo(b);
+      }
+
+      private int rank(String symbol) {
+        if (!FORMULA_SYMBOLS.contains(symbol)) {
+          return 4;
+        }
+        if (carbon && symbol.equals("C")) {
+          return 0;
+        }
+        if (carbon && symbol.equals("H")) {
+          return 1;
+        }
+        return symbol.equals("R") ? 3 : 2;
+      }
+    });
+
+    StringBuilder formula = new StringBuilder();
+    Map<String, Integer> elementCounts = new LinkedHashMap<>();
+    for (String symbol : symbols) {
+      int count = counts.get(symbol)[0];
+      elementCounts.put(symbol, count);
+      if (FORMULA_SYMBOLS.contains(symbol)) {
+        formula.append(symbol);
+        if (count != 1) {
+          formula.append(count);
+        }
+      }
+    }
+    return new MoleculeProperties(naturalMass, formula.toString(), exactMass,
+        Collections.unmodifiableMap(elementCounts));
+  }
+
+  private static void increment(Map<String, int[]> counts, String symbol, int count) {
+    int[] value = counts.get(symbol);
+    if (value == null) {
+      counts.put(symbol, new int[] {count});
+    } else {
+      value[0] += count;
+    }
+  }
+
+  private static double getNaturalMass(int atomicNumber) throws CTKException {
+    Double mass = NATURAL_MASSES.get(atomicNumber);
+    if (mass == null) {
+      try {
+        mass = Isotopes.getInstance().getNaturalMass(Elements.ofNumber(atomicNumber).toIElement());
+      } catch (IOException e) {
+        throw new CTKException("Isotopes definitions could not be loaded", e);
+      }
+      NATURAL_MASSES.put(atomicNumber, mass);
+    }
+    return mass;
+  }
+
+  private static double getMajorIsotopeMass(String symbol) throws CTKException {
+    Double mass = MAJOR_ISOTOPE_MASSES.get(symbol);
+    if (mass == null) {
+      try {
+        IIsotope major = Isotopes.getInstance().getMajorIsotope(symbol);
+        mass = major != null ? major.getExactMass() : Double.NaN;
+      } catch (IOException e) {
+        throw new CTKException("Isotopes definitions could not be loaded", e);
+      }
+      MAJOR_ISOTOPE_MASSES.put(symbol, mass);
+    }
+    return mass;
+  }
+
+}
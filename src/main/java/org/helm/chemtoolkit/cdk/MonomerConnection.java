@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+/**
+ * {@code MonomerConnection} a bond between two monomers of a polymer built by
+ * {@link CDKManipulator#assemble(java.util.List, java.util.List)}: the R group of the first monomer is joined with the
+ * R group of the second one. Both monomers may be the same to close a ring.
+ */
+public final class MonomerConnection {
+
+  private final int firstMonomer;
+
+  private final int firstRgroup;
+
+  private final int secondMonomer;
+
+  private final int secondRgroup;
+
+  /**
+   * @param firstMonomer index of the first monomer
+   * @param firstRgroup R group number in the first monomer
+   * @param secondMonomer index of the second monomer
+   * @param secondRgroup R group number in the second monomer
+   */
+  public MonomerConnection(int firstMonomer, int firstRgroup, int secondMonomer, int secondRgroup) {
+    this.firstMonomer = firstMonomer;
+    this.firstRgroup = firstRgroup;
+    this.secondMonomer = secondMonomer;
+    this.secondRgroup = secondRgroup;
+  }
+
+  /**
+   * @return index of the first monomer
+   */
+  public int getFirstMonomer() {
+    return firstMonomer;
+  }
+
+  /**
+   * @return R group number in the first monomer
+   */
+  public int getFirstRgroup() {
+    return firstRgroup;
+  }
+
+  /**
+   * @return index of the second monomer
+   */
+  public int getSecondMonomer() {
+    return secondMonomer;
+  }
+
+  /**
+   * @return R group number in the second monomer
+   */
+  public int getSecondRgroup() {
+    return secondRgroup;
+  }
+
+  @Override
+  public String toString() {
+    return firstMonomer + ":R" + firstRgroup + "-" + secondMonomer + ":R" + secondRgroup;
+  }
+
+}
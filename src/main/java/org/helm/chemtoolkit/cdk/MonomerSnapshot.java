@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code MonomerSnapshot} a precompiled monomer library. {@link #write(Path, Map)} stores monomers which have been
+ * parsed, perceived and laid out once in a compact binary file, {@link #open(Path)} memory-maps such a file and reads
+ * only its table of contents. {@link #getMolecule(String)} restores a monomer with its coordinates and attachments
+ * without any parsing or perception, so a service can start without building its monomer set from SMILES.
+ * <p>
+ * Every call of {@link #getMolecule(String)} returns a new molecule. A snapshot can be used by several threads
+ * concurrently.
+ */
+public final class MonomerSnapshot implements Closeable {
+
+  private static final int MAGIC = 0x484d4c53;
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER_SIZE = 16;
+
+  private final Path file;
+
+  private final Map<String, Integer> entries;
+
+  private final int[] offsets;
+
+  private final int[] lengths;
+
+  private volatile MappedByteBuffer buffer;
+
+  private MonomerSnapshot(Path file, Map<String, Integer> entries, int[] offsets, int[] lengths,
+      MappedByteBuffer buffer) {
+    this.file = file;
+    this.entries = entries;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.buffer = buffer;
+  }
+
+  /**
+   * writes a snapshot of the given monomers, monomers without 2D coordinates are laid out first
+   *
+   * @param file target file
+   * @param monomers monomers by id, as returned by {@link CDKManipulator#getMolecule(String,
+   *          org.helm.chemtoolkit.AttachmentList)}
+   * @throws IOException if the file cannot be written
+   * @throws CTKException if a monomer is not a {@link CDKMolecule} or cannot be encoded
+   */
+  public static void write(Path file, Map<String, ? extends AbstractMolecule> monomers)
+      throws IOException, CTKException {
+    List<byte[]> ids = new ArrayList<>(monomers.size());
+    List<byte[]> data = new ArrayList<>(monomers.size());
+    int tableSize = 0;
+    for (Map.Entry<String, ? extends AbstractMolecule> entry : monomers.entrySet()) {
+      if (!(entry.getValue() instanceof CDKMolecule)) {
+        throw new CTKException("monomer " + entry.getKey() + " is not a CDK molecule");
+      }
+      CDKMolecule molecule = (CDKMolecule) entry.getValue();
+      if (!molecule.hasCoordinates()) {
+        molecule.generateCoordinates(2);
+      }
+      ByteBuffer encoded = ByteBuffer.allocate(MoleculeCodec.sizeOf(molecule));
+      MoleculeCodec.write(molecule, encoded);
+      byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      ids.add(id);
+      data.add(encoded.array());
+      tableSize += 12 + id.length;
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(ids.size());
+      out.writeInt(tableSize);
+      long offset = HEADER_SIZE + tableSize;
+      for (int i = 0; i < ids.size(); i++) {
+        if (offset + data.get(i).length > Integer.MAX_VALUE) {
+          throw new IOException("the snapshot is too large");
+        }
+        out.writeInt(ids.get(i).length);
+        out.write(ids.get(i));
+        out.writeInt((int) offset);
+        out.writeInt(data.get(i).length);
+        offset += data.get(i).length;
+      }
+      for (byte[] bytes : data) {
+        out.write(bytes);
+      }
+    }
+  }
+
+  /**
+   * memory-maps a snapshot and reads its table of contents
+   *
+   * @param file snapshot file
+   * @return the snapshot
+   * @throws IOException if the file cannot be read or is not a snapshot
+   */
+  public static MonomerSnapshot open(Path file) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("the snapshot is too large");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException(file + " is not a monomer snapshot");
+      }
+      int count = buffer.getInt();
+      buffer.getInt();
+      if (count < 0) {
+        throw new IOException(file + " is not a monomer snapshot");
+      }
+      Map<String, Integer> entries = new HashMap<>(2 * count);
+      int[] offsets = new int[count];
+      int[] lengths = new int[count];
+      for (int i = 0; i < count; i++) {
+        byte[] id = new byte[buffer.getInt()];
+        buffer.get(id);
+        offsets[i] = buffer.getInt();
+        lengths[i] = buffer.getInt();
+        if (offsets[i] < HEADER_SIZE || lengths[i] < 0 || (long) offsets[i] + lengths[i] > buffer.capacity()) {
+          throw new IOException(file + " is corrupt");
+        }
+        entries.put(new String(id, StandardCharsets.UTF_8), i);
+      }
+      return new MonomerSnapshot(file, entries, offsets, lengths, buffer);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IOException(file + " is corrupt", e);
+    }
+  }
+
+  /**
+   * @return the snapshot file
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * @return number of monomers
+   */
+  public int size() {
+    return offsets.length;
+  }
+
+  /**
+   * @return ids of all monomers
+   */
+  public Set<String> getIds() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+
+  /**
+   * restores a monomer
+   *
+   * @param id monomer id
+   * @return a new molecule or null if the snapshot has no such monomer
+   * @throws CTKException if the snapshot has been closed or the monomer cannot be decoded
+   */
+  public CDKMolecule getMolecule(String id) throws CTKException {
+    MappedByteBuffer mapped = buffer;
+    if (mapped == null) {
+      throw new CTKException("the snapshot is closed");
+    }
+    Integer index = entries.get(id);
+    if (index == null) {
+      return null;
+    }
+    ByteBuffer data = mapped.duplicate();
+    data.limit(offsets[index] + lengths[index]);
+    data.position(offsets[index]);
+    return MoleculeCodec.read(data);
+  }
+
+  /**
+   * drops the mapping, the snapshot cannot be used afterwards. The mapping is released by the garbage collector,
+   * until then the file stays mapped and, on Windows, locked.
+   */
+  @Override
+  public void close() {
+    buffer = null;
+  }
+
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.Attachment;
+import org.helm.chemtoolkit.AttachmentList;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IPseudoAtom;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.interfaces.ITetrahedralChirality;
+import org.openscience.cdk.silent.AtomContainer;
+import org.openscience.cdk.silent.Bond;
+import org.openscience.cdk.stereo.TetrahedralChirality;
+
+/**
+ * {@code PolymerAssembler} builds a polymer from all its monomers and connections at once. The result is the same as
+ * the one of a series of {@link CDKManipulator#merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)}
+ * calls, but every atom, bond and stereo element of the monomers is visited a constant number of times and the
+ * container is created with its final atom and bond arrays.
+ */
+final class PolymerAssembler {
+
+  /**
+   * one side of a connection: the R atom which is removed and the atom it is bound to
+   */
+  private static final class Junction {
+
+    final int monomer;
+
+    final IAtom rGroup;
+
+    IAtom neighbor;
+
+    IBond bond;
+
+    Junction partner;
+
+    // the R atom is part of a stereo element of its monomer
+    boolean stereo;
+
+    // the R atom is a ligand of a tetrahedral center, its bond carries the wedge
+    boolean tetrahedral;
+
+    Junction(int monomer, IAtom rGroup) {
+      this.monomer = monomer;
+      this.rGroup = rGroup;
+    }
+
+  }
+
+  private final CDKMolecule[] monomers;
+
+  private final List<MonomerConnection> connections;
+
+  private final List<List<Junction>> monomerJunctions;
+
+  private final Map<IAtom, Junction> junctions;
+
+  private PolymerAssembler(CDKMolecule[] monomers, List<MonomerConnection> connections) {
+    this.monomers = monomers;
+    this.connections = connections;
+    this.monomerJunctions = new ArrayList<>(Collections.<List<Junction>> nCopies(monomers.length, null));
+    this.junctions = new IdentityHashMap<>(4 * connections.size());
+  }
+
+  /**
+   * assembles the polymer, see {@link CDKManipulator#assemble(List, List)}
+   *
+   * @param monomers distinct monomers
+   * @param connections R group pairs to join
+   * @return the polymer
+   * @throws CTKException if a connection is invalid
+   */
+  static CDKMolecule assemble(List<? extends AbstractMolecule> monomers, List<MonomerConnection> connections)
+      throws CTKException {
+    CDKMolecule[] molecules = new CDKMolecule[monomers.size()];
+    Set<IAtomContainer> distinct = Collections.newSetFromMap(new IdentityHashMap<IAtomContainer, Boolean>());
+    for (int i = 0; i < molecules.length; i++) {
+      if (!(monomers.get(i) instanceof CDKMolecule)) {
+        throw new CTKException("invalid molecule");
+      }
+      molecules[i] = (CDKMolecule) monomers.get(i);
+      if (!distinct.add(molecules[i].getMolecule())) {
+        throw new CTKException("monomer " + i + " is given more than once");
+      }
+    }
+    return new PolymerAssembler(molecules, connections).assemble();
+  }
+
+  private CDKMolecule assemble() throws CTKException {
+    int atomCount = 0;
+    int bondCount = 0;
+    for (CDKMolecule monomer : monomers) {
+      atomCount += monomer.getMolecule().getAtomCount();
+      bondCount += monomer.getMolecule().getBondCount();
+    }
+
+    Junction[] firsts = new Junction[connections.size()];
+    Junction[] seconds = new Junction[connections.size()];
+    for (int i = 0; i < firsts.length; i++) {
+      MonomerConnection connection = connections.get(i);
+      firsts[i] = addJunction(connection.getFirstMonomer(), connection.getFirstRgroup());
+      seconds[i] = addJunction(connection.getSecondMonomer(), connection.getSecondRgroup());
+      firsts[i].partner = seconds[i];
+      seconds[i].partner = firsts[i];
+    }
+
+    for (CDKMolecule monomer : monomers) {
+      monomer.dearomatize();
+    }
+
+    IBond[] bonds = new IBond[bondCount - firsts.length];
+    int bondIndex = 0;
+    for (CDKMolecule monomer : monomers) {
+      for (IBond bond : monomer.getMolecule().bonds()) {
+        Junction junction = junctions.get(bond.getAtom(0));
+        IAtom neighbor = bond.getAtom(1);
+        if (junction == null) {
+          junction = junctions.get(bond.getAtom(1));
+          neighbor = bond.getAtom(0);
+        }
+        if (junction == null) {
+          bonds[bondIndex++] = bond;
+        } else if (junction.bond != null || junctions.containsKey(neighbor)) {
+          throw new CTKException("RGroup is allowed to have single connection to other atom");
+        } else {
+          junction.bond = bond;
+          junction.neighbor = neighbor;
+        }
+      }
+    }
+    for (Junction junction : junctions.values()) {
+      if (junction.bond == null) {
+        throw new CTKException("RGroup is allowed to have single connection to other atom");
+      }
+    }
+
+    List<IStereoElement> stereoElements = new ArrayList<>();
+    for (int i = 0; i < monomers.length; i++) {
+      for (IStereoElement element : monomers[i].getMolecule().stereoElements()) {
+        IStereoElement mapped = mapStereoElement(element, monomerJunctions.get(i));
+        if (mapped != null) {
+          stereoElements.add(mapped);
+        }
+      }
+    }
+    for (int i = 0; i < firsts.length; i++) {
+      if (firsts[i].stereo && seconds[i].stereo) {
+        throw new CTKException("Both R atoms are connected to chiral centers");
+      }
+    }
+
+    placeMonomers(firsts, seconds);
+
+    for (int i = 0; i < firsts.length; i++) {
+      bonds[bondIndex++] = bindJunction(firsts[i], seconds[i]);
+    }
+
+    IAtom[] atoms = new IAtom[atomCount - 2 * firsts.length];
+    int atomIndex = 0;
+    for (CDKMolecule monomer : monomers) {
+      for (IAtom atom : monomer.getMolecule().atoms()) {
+        if (!junctions.containsKey(atom)) {
+          atoms[atomIndex++] = atom;
+        }
+      }
+    }
+
+    AttachmentList attachments = renumberAttachments();
+
+    IAtomContainer polymer = new AtomContainer();
+    polymer.setAtoms(atoms);
+    polymer.setBonds(bonds);
+    polymer.setStereoElements(stereoElements);
+    return new CDKMolecule(polymer, attachments);
+  }
+
+  private Junction addJunction(int monomer, int rGroup) throws CTKException {
+    if (monomer < 0 || monomer >= monomers.length) {
+      throw new CTKException("monomer " + monomer + " doesn't exist");
+    }
+    IAtom atom = getRgroup(monomer, rGroup);
+    if (atom == null) {
+      throw new CTKException("R" + rGroup + " not found in monomer " + monomer);
+    }
+    Junction junction = new Junction(monomer, atom);
+    if (junctions.put(atom, junction) != null) {
+      throw new CTKException("R" + rGroup + " of monomer " + monomer + " is used more than once");
+    }
+    if (monomerJunctions.get(monomer) == null) {
+      monomerJunctions.set(monomer, new ArrayList<Junction>(3));
+    }
+    monomerJunctions.get(monomer).add(junction);
+    return junction;
+  }
+
+  private IAtom getRgroup(int monomer, int rGroup) {
+    CDKAtom atom = monomers[monomer].getRgroupAtom(rGroup);
+    return atom != null && atom.getMolAtom() instanceof IPseudoAtom ? atom.getMolAtom() : null;
+  }
+
+  /**
+   * returns the stereo element with removed R atoms replaced by the atoms they are joined with, or null if the
+   * element is lost
+   */
+  private IStereoElement mapStereoElement(IStereoElement element, List<Junction> own) {
+    if (own == null) {
+      return element;
+    }
+    Junction junction = null;
+    for (Junction candidate : own) {
+      if (element.contains(candidate.rGroup)) {
+        junction = candidate;
+        candidate.stereo = true;
+      }
+    }
+    if (junction == null) {
+      return element;
+    }
+    if (!(element instanceof ITetrahedralChirality)) {
+      return null;
+    }
+    ITetrahedralChirality chirality = (ITetrahedralChirality) element;
+    IAtom[] ligands = chirality.getLigands().clone();
+    for (int i = 0; i < ligands.length; i++) {
+      Junction ligand = junctions.get(ligands[i]);
+      if (ligand != null) {
+        ligands[i] = ligand.partner.neighbor;
+        ligand.tetrahedral = true;
+      }
+    }
+    return new TetrahedralChirality(chirality.getChiralAtom(), ligands, chirality.getStereo());
+  }
+
+  /**
+   * binds the atoms of a connection, the wedge of a stereo R bond is kept the same way as by the merge
+   */
+  private static IBond bindJunction(Junction first, Junction second) {
+    IBond bond;
+    if (first.tetrahedral) {
+      bond = new Bond(second.neighbor, first.neighbor);
+      bond.setStereo(first.bond.getStereo());
+    } else if (second.tetrahedral) {
+      bond = new Bond(first.neighbor, second.neighbor);
+      bond.setStereo(second.bond.getStereo());
+    } else {
+      bond = new Bond(first.neighbor, second.neighbor);
+    }
+    return bond;
+  }
+
+  /**
+   * if every monomer has coordinates, places the monomers as rigid templates along a spanning tree of the connections
+   */
+  private void placeMonomers(Junction[] firsts, Junction[] seconds) {
+    List<List<Integer>> adjacency = new ArrayList<>(monomers.length);
+    for (CDKMolecule monomer : monomers) {
+      if (!monomer.hasCoordinates()) {
+        return;
+      }
+      adjacency.add(new ArrayList<Integer>(2));
+    }
+    for (int i = 0; i < firsts.length; i++) {
+      adjacency.get(firsts[i].monomer).add(i);
+      adjacency.get(seconds[i].monomer).add(i);
+    }
+
+    boolean[] placed = new boolean[monomers.length];
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int root = 0; root < monomers.length; root++) {
+      if (placed[root]) {
+        continue;
+      }
+      placed[root] = true;
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        int monomer = queue.poll();
+        for (int connection : adjacency.get(monomer)) {
+          Junction own = firsts[connection].monomer == monomer ? firsts[connection] : seconds[connection];
+          Junction other = own.partner;
+          if (!placed[other.monomer]) {
+            monomers[other.monomer].placeAt(other.rGroup, other.neighbor, own.rGroup, own.neighbor);
+            placed[other.monomer] = true;
+            queue.add(other.monomer);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * drops the attachments of the removed R atoms and numbers the remaining ones in the order of the monomers
+   */
+  private AttachmentList renumberAttachments() {
+    AttachmentList result = new AttachmentList();
+    int index = 1;
+    for (int i = 0; i < monomers.length; i++) {
+      for (Attachment item : monomers[i].getAttachments()) {
+        IAtom atom = getRgroup(i, item.getCurrentIndex());
+        if (atom != null && junctions.containsKey(atom)) {
+          continue;
+        }
+        Attachment attachment = item.cloneAttachment();
+        if (atom != null) {
+          ((IPseudoAtom) atom).setLabel("R" + index);
+        }
+        attachment.changeIndex(index);
+        result.add(attachment);
+        index++;
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code SDFRecordReader} reads an SD file record by record. Only the current record is held in memory, so files of
+ * any size can be processed with constant heap. A record is the text up to, but not including, its {@code $$$$}
+ * line: the molfile followed by its data items.
+ */
+public class SDFRecordReader implements Closeable {
+
+  /** the record delimiter of SD files */
+  public static final String DELIMITER = "$$$$";
+
+  private final BufferedReader reader;
+
+  private final StringBuilder record = new StringBuilder(4096);
+
+  private long recordCount;
+
+  /**
+   * @param in SD file stream, read as ISO-8859-1
+   */
+  public SDFRecordReader(InputStream in) {
+    this(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * @param reader SD file reader
+   */
+  public SDFRecordReader(Reader reader) {
+    this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 65536);
+  }
+
+  /**
+   * reads the next record
+   *
+   * @return the record text with unix line endings, null at the end of the file
+   * @throws IOException if the file cannot be read
+   */
+  public String next() throws IOException {
+    record.setLength(0);
+    String line;
+    boolean content = false;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith(DELIMITER) && line.trim().equals(DELIMITER)) {
+        if (content) {
+          break;
+        }
+        // empty record
+        record.setLength(0);
+        continue;
+      }
+      if (!content && !line.trim().isEmpty()) {
+        content = true;
+      }
+      record.append(line).append('\n');
+    }
+    if (!content) {
+      return null;
+    }
+    recordCount++;
+    return record.toString();
+  }
+
+  /**
+   * @return the number of records read so far
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code SDFileIndex} random access to the records of an SD file. The file is memory-mapped and the byte offset of
+ * every record is kept in a primitive array, which is persisted next to the file as {@code <file>.idx} and reused as
+ * long as the SD file is unchanged. {@link #getRecord(int)} copies only the bytes of the requested record, the result
+ * can be passed to {@link CDKManipulator#getMolecule(String, org.helm.chemtoolkit.AttachmentList)}.
+ * <p>
+ * Records are delimited by {@code $$$$} lines, empty records are skipped the same way as by {@link SDFRecordReader}.
+ * An index can be used by several threads concurrently.
+ */
+public final class SDFileIndex implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SDFileIndex.class);
+
+  /** suffix of the persisted index file */
+  public static final String INDEX_SUFFIX = ".idx";
+
+  private static final int MAGIC = 0x53444649;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 32;
+
+  // files larger than 1 GiB are mapped in several segments
+  private static final int SEGMENT_BITS = 30;
+
+  private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+  private final Path file;
+
+  private final long length;
+
+  private final long[] offsets;
+
+  private volatile MappedByteBuffer[] segments;
+
+  private SDFileIndex(Path file, long length, long[] offsets, MappedByteBuffer[] segments) {
+    this.file = file;
+    this.length = length;
+    this.offsets = offsets;
+    this.segments = segments;
+  }
+
+  /**
+   * opens the index of the given SD file, reading the persisted index if it is up to date and building it otherwise.
+   * If the built index cannot be persisted, e.g. in a read-only directory, it is only kept in memory.
+   *
+   * @param file SD file
+   * @return the index
+   * @throws IOException if the SD file cannot be read
+   */
+  public static SDFileIndex open(Path file) throws IOException {
+    MappedByteBuffer[] segments = map(file);
+    long length = Files.size(file);
+    long[] offsets = readIndex(file, length);
+    if (offsets == null) {
+      offsets = scan(segments, length);
+      try {
+        writeIndex(file, length, offsets);
+      } catch (IOException e) {
+        LOG.warn("unable to write the index of " + file + ": " + e.getMessage());
+      }
+    }
+    return new SDFileIndex(file, length, offsets, segments);
+  }
+
+  /**
+   * builds the index of the given SD file and persists it, ignoring an existing index
+   *
+   * @param file SD file
+   * @return the index
+   * @throws IOException if the files cannot be read or written
+   */
+  public static SDFileIndex build(Path file) throws IOException {
+    MappedByteBuffer[] segments = map(file);
+    long length = Files.size(file);
+    long[] offsets = scan(segments, length);
+    writeIndex(file, length, offsets);
+    return new SDFileIndex(file, length, offsets, segments);
+  }
+
+  /**
+   * @param file SD file
+   * @return the path of the persisted index of the file
+   */
+  public static Path getIndexFile(Path file) {
+    return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+  }
+
+  /**
+   * @return the indexed SD file
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * @return number of records
+   */
+  public int size() {
+    return offsets.length;
+  }
+
+  /**
+   * @param index record index
+   * @return byte offset of the record in the file
+   */
+  public long getOffset(int index) {
+    return offsets[index];
+  }
+
+  /**
+   * returns the text of a record, the molfile followed by its data items
+   *
+   * @param index record index, starting at 0
+   * @return the record without its $$$$ line, with unix line endings like {@link SDFRecordReader#next()}
+   * @throws IOException if the index has been closed
+   */
+  public String getRecord(int index) throws IOException {
+    MappedByteBuffer[] mapped = segments;
+    if (mapped == null) {
+      throw new IOException("the index is closed");
+    }
+    if (index < 0 || index >= offsets.length) {
+      throw new IndexOutOfBoundsException("record " + index + " of " + offsets.length);
+    }
+    long start = offsets[index];
+    long end = index + 1 < offsets.length ? offsets[index + 1] : length;
+    if (end - start > Integer.MAX_VALUE) {
+      throw new IOException("record " + index + " is too large");
+    }
+    byte[] bytes = new byte[(int) (end - start)];
+    copy(mapped, start, bytes);
+    return toText(bytes, recordLength(bytes));
+  }
+
+  /**
+   * drops the mapping, the index cannot be used afterwards. The mapping is released by the garbage collector, until
+   * then the file stays mapped and, on Windows, locked.
+   */
+  @Override
+  public void close() {
+    segments = null;
+  }
+
+  private static MappedByteBuffer[] map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      int count = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+      MappedByteBuffer[] segments = new MappedByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long position = (long) i << SEGMENT_BITS;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_MASK + 1, size - position));
+      }
+      return segments;
+    }
+  }
+
+  /**
+   * finds the start offset of every non-empty record
+   */
+  private static long[] scan(MappedByteBuffer[] segments, long length) {
+    long[] starts = new long[1024];
+    int count = 0;
+
+    long recordStart = 0;
+    boolean recordContent = false;
+    boolean lineContent = false;
+    // number of '$' at the start of the current line, -1 if the line is not a delimiter
+    int dollars = 0;
+
+    for (int s = 0; s < segments.length; s++) {
+      ByteBuffer segment = segments[s].duplicate();
+      long base = (long) s << SEGMENT_BITS;
+      int limit = segment.limit();
+      for (int i = 0; i < limit; i++) {
+        byte b = segment.get(i);
+        if (b == '\n') {
+          if (dollars == 4) {
+            if (recordContent) {
+              if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+              }
+              starts[count++] = recordStart;
+            }
+            recordStart = base + i + 1;
+            recordContent = false;
+          } else if (lineContent || dollars > 0) {
+            recordContent = true;
+          }
+          lineContent = false;
+          dollars = 0;
+        } else if (dollars >= 0 && dollars < 4 && b == '$') {
+          dollars++;
+        } else if (dollars == 4 && (b == ' ' || b == '\t' || b == '\r')) {
+          // trailing whitespace after the delimiter
+        } else {
+          if (dollars > 0 || !isWhitespace(b)) {
+            lineContent = true;
+          }
+          dollars = -1;
+        }
+      }
+    }
+
+    // last record without a trailing line break
+    if (dollars != 4 && (lineContent || dollars > 0)) {
+      recordContent = true;
+    }
+    if (recordContent) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count + 1);
+      }
+      starts[count++] = recordStart;
+    }
+    return Arrays.copyOf(starts, count);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static void copy(MappedByteBuffer[] segments, long position, byte[] destination) {
+    int copied = 0;
+    while (copied < destination.length) {
+      long current = position + copied;
+      ByteBuffer segment = segments[(int) (current >>> SEGMENT_BITS)].duplicate();
+      segment.position((int) (current & SEGMENT_MASK));
+      int n = Math.min(destination.length - copied, segment.remaining());
+      segment.get(destination, copied, n);
+      copied += n;
+    }
+  }
+
+  /**
+   * returns the length of the record without its delimiter line and anything after it
+   */
+  /**
+   * decodes the first bytes of a record as ISO-8859-1 text, with the line endings of {@link SDFRecordReader}: every
+   * line, the last one included, ends with a single '\n'
+   */
+  private static String toText(byte[] bytes, int length) {
+    StringBuilder text = new StringBuilder(length + 1);
+    for (int i = 0; i < length; i++) {
+      char c = (char) (bytes[i] & 0xFF);
+      if (c == '\r') {
+        if (i + 1 < length && bytes[i + 1] == '\n') {
+          continue;
+        }
+        c = '\n';
+      }
+      text.append(c);
+    }
+    if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+      text.append('\n');
+    }
+    return text.toString();
+  }
+
+  private static int recordLength(byte[] bytes) {
+    int lineStart = 0;
+    while (lineStart < bytes.length) {
+      int i = lineStart;
+      int dollars = 0;
+      while (i < bytes.length && bytes[i] == '$' && dollars < 4) {
+        i++;
+        dollars++;
+      }
+      while (dollars == 4 && i < bytes.length && isWhitespace(bytes[i])) {
+        i++;
+      }
+      if (dollars == 4 && (i == bytes.length || bytes[i] == '\n')) {
+        return lineStart;
+      }
+      while (i < bytes.length && bytes[i] != '\n') {
+        i++;
+      }
+      lineStart = i + 1;
+    }
+    return bytes.length;
+  }
+
+  private static long[] readIndex(Path file, long length) throws IOException {
+    Path indexFile = getIndexFile(file);
+    if (!Files.isRegularFile(indexFile)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE) {
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != length
+          || buffer.getLong() != Files.getLastModifiedTime(file).toMillis()) {
+        return null;
+      }
+      int count = buffer.getInt();
+      buffer.position(HEADER_SIZE);
+      if (count < 0 || buffer.remaining() != (long) count * 8) {
+        return null;
+      }
+      long[] offsets = new long[count];
+      LongBuffer longs = buffer.asLongBuffer();
+      longs.get(offsets);
+      return offsets;
+    }
+  }
+
+  private static void writeIndex(Path file, long length, long[] offsets) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(getIndexFile(file)),
+        65536))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(length);
+      out.writeLong(Files.getLastModifiedTime(file).toMillis());
+      out.writeInt(offsets.length);
+      out.writeInt(0);
+      for (long offset : offsets) {
+        out.writeLong(offset);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * {@code SimilarityIndex} finds the molecules most similar to a query by the Tanimoto coefficient of their path
+ * fingerprints, the same fingerprints as {@link SubstructureIndex}. The fingerprints are stored row by row in one
+ * matrix of longs, on the heap or optionally in direct memory outside of it. A search splits the matrix into ranges
+ * which are scanned in parallel, each keeping its own bounded heap of the best hits.
+ * <p>
+ * The index keeps no molecules, only identifiers and fingerprints. It is not safe for concurrent modification but
+ * searches may run concurrently.
+ */
+public final class SimilarityIndex {
+
+  private static final int WORDS = SubstructureIndex.FINGERPRINT_SIZE / 64;
+
+  /** fingerprints per parallel search task */
+  private static final int RANGE_SIZE = 16384;
+
+  /**
+   * a search result
+   */
+  public static final class Hit {
+
+    private final String id;
+
+    private final double similarity;
+
+    Hit(String id, double similarity) {
+      this.id = id;
+      this.similarity = similarity;
+    }
+
+    /**
+     * @return identifier of the molecule
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return Tanimoto coefficient between 0 and 1
+     */
+    public double getSimilarity() {
+      return similarity;
+    }
+
+    @Override
+    public String toString() {
+      return id + "=" + similarity;
+    }
+
+  }
+
+  private final ForkJoinPool pool;
+
+  private final boolean offHeap;
+
+  private LongBuffer fingerprints;
+
+  private int[] cardinalities;
+
+  private String[] ids;
+
+  private int size;
+
+  /**
+   * creates an index on the heap which runs on the shared batch pool
+   */
+  public SimilarityIndex() {
+    this(16, false, BatchExecutor.getDefaultPool());
+  }
+
+  /**
+   * @param capacity initial number of fingerprints, the index grows as needed
+   * @param offHeap true to keep the fingerprints in direct memory
+   * @param pool pool for adding and searching in parallel
+   */
+  public SimilarityIndex(int capacity, boolean offHeap, ForkJoinPool pool) {
+    this.pool = pool;
+    this.offHeap = offHeap;
+    capacity = Math.max(capacity, 1);
+    this.fingerprints = allocate(capacity);
+    this.cardinalities = new int[capacity];
+    this.ids = new String[capacity];
+  }
+
+  /**
+   * adds a molecule
+   *
+   * @param id identifier returned by searches
+   * @param molecule given molecule, not kept by the index
+   * @throws CTKException if the fingerprint cannot be computed
+   */
+  public void add(String id, AbstractMolecule molecule) throws CTKException {
+    add(id, SubstructureIndex.fingerprint((IAtomContainer) molecule.getMolecule()));
+  }
+
+  /**
+   * adds a precomputed fingerprint
+   *
+   * @param id identifier returned by searches
+   * @param fingerprint {@link SubstructureIndex#FINGERPRINT_SIZE} bits packed into longs, the first bit in the lowest
+   *          bit of the first long as in {@link java.util.BitSet#toLongArray()}
+   */
+  public void add(String id, long[] fingerprint) {
+    if (fingerprint.length != WORDS) {
+      throw new IllegalArgumentException("fingerprint must have " + WORDS + " words");
+    }
+    if (size == ids.length) {
+      grow(2 * size);
+    }
+    int cardinality = 0;
+    int base = size * WORDS;
+    for (int w = 0; w < WORDS; w++) {
+      fingerprints.put(base + w, fingerprint[w]);
+      cardinality += Long.bitCount(fingerprint[w]);
+    }
+    cardinalities[size] = cardinality;
+    ids[size] = id;
+    size++;
+  }
+
+  /**
+   * adds molecules, their fingerprints are computed in parallel
+   *
+   * @param molecules molecules by identifier, not kept by the index
+   * @return the error of every molecule which could not be added, by identifier
+   */
+  public Map<String, CTKException> addAll(Map<String, ? extends AbstractMolecule> molecules) {
+    List<String> keys = new ArrayList<>(molecules.keySet());
+    List<AbstractMolecule> values = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      values.add(molecules.get(key));
+    }
+    List<BatchResult<long[]>> results =
+        BatchExecutor.run(pool, values, new BatchExecutor.Task<AbstractMolecule, long[]>() {
+          @Override
+          public long[] apply(AbstractMolecule item) throws CTKException {
+            return SubstructureIndex.fingerprint((IAtomContainer) item.getMolecule());
+          }
+        });
+
+    if (size + keys.size() > ids.length) {
+      grow(size + keys.size());
+    }
+    Map<String, CTKException> errors = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      BatchResult<long[]> result = results.get(i);
+      if (result.isSuccess()) {
+        add(keys.get(i), result.getValue());
+      } else {
+        errors.put(keys.get(i), result.getError());
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * returns the molecules most similar to the query
+   *
+   * @param query query structure
+   * @param k maximum number of hits
+   * @return at most k hits by decreasing similarity, equal similarities in the order the molecules were added
+   * @throws CTKException if the fingerprint of the query cannot be computed
+   */
+  public List<Hit> search(AbstractMolecule query, int k) throws CTKException {
+    return search(SubstructureIndex.fingerprint((IAtomContainer) query.getMolecule()), k);
+  }
+
+  /**
+   * returns the fingerprints most similar to the query
+   *
+   * @param query query fingerprint, see {@link #add(String, long[])}
+   * @param k maximum number of hits
+   * @return at most k hits by decreasing similarity, equal similarities in the order the fingerprints were added
+   */
+  public List<Hit> search(final long[] query, final int k) {
+    if (query.length != WORDS) {
+      throw new IllegalArgumentException("fingerprint must have " + WORDS + " words");
+    }
+    if (k <= 0 || size == 0) {
+      return new ArrayList<>();
+    }
+    int queryCardinality = 0;
+    for (long word : query) {
+      queryCardinality += Long.bitCount(word);
+    }
+    final int cardinality = queryCardinality;
+    final LongBuffer matrix = fingerprints;
+    final int[] counts = cardinalities;
+    final int count = size;
+
+    List<Integer> ranges = new ArrayList<>();
+    for (int from = 0; from < count; from += RANGE_SIZE) {
+      ranges.add(from);
+    }
+    List<BatchResult<TopK>> results = BatchExecutor.run(pool, ranges, new BatchExecutor.Task<Integer, TopK>() {
+      @Override
+      public TopK apply(Integer from) {
+        TopK top = new TopK(k);
+        int to = Math.min(from + RANGE_SIZE, count);
+        // the array of a heap matrix is read directly, the buffer only for direct memory
+        long[] array = matrix.hasArray() ? matrix.array() : null;
+        for (int i = from; i < to; i++) {
+          int base = i * WORDS;
+          int common = 0;
+          if (array != null) {
+            for (int w = 0; w < WORDS; w++) {
+              common += Long.bitCount(array[base + w] & query[w]);
+            }
+          } else {
+            for (int w = 0; w < WORDS; w++) {
+              common += Long.bitCount(matrix.get(base + w) & query[w]);
+            }
+          }
+          int union = cardinality + counts[i] - common;
+          top.offer(i, union == 0 ? 0 : (double) common / union);
+        }
+        return top;
+      }
+    });
+
+    TopK top = new TopK(k);
+    for (BatchResult<TopK> result : results) {
+      TopK range = result.getValue();
+      for (int i = 0; i < range.size; i++) {
+        top.offer(range.indices[i], range.scores[i]);
+      }
+    }
+    int[] order = top.sorted();
+    List<Hit> hits = new ArrayList<>(order.length);
+    for (int i : order) {
+      hits.add(new Hit(ids[top.indices[i]], top.scores[i]));
+    }
+    return hits;
+  }
+
+  /**
+   * @return number of fingerprints
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return true if the fingerprints are kept in direct memory
+   */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  private LongBuffer allocate(int capacity) {
+    if (offHeap) {
+      return ByteBuffer.allocateDirect(capacity * WORDS * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+    return LongBuffer.wrap(new long[capacity * WORDS]);
+  }
+
+  private void grow(int capacity) {
+    LongBuffer grown = allocate(capacity);
+    LongBuffer used = fingerprints.duplicate();
+    used.limit(size * WORDS);
+    used.position(0);
+    grown.put(used);
+    fingerprints = grown;
+    cardinalities = Arrays.copyOf(cardinalities, capacity);
+    ids = Arrays.copyOf(ids, capacity);
+  }
+
+  /**
+   * bounded min-heap of the best scores, the worst kept hit is at the root
+   */
+  private static final class TopK {
+
+    final int[] indices;
+
+    final double[] scores;
+
+    int size;
+
+    TopK(int k) {
+      indices = new int[k];
+      scores = new double[k];
+    }
+
+    void offer(int index, double score) {
+      if (size < indices.length) {
+        int i = size++;
+        indices[i] = index;
+        scores[i] = score;
+        siftUp(i);
+      } else if (worse(indices[0], scores[0], index, score)) {
+        indices[0] = index;
+        scores[0] = score;
+        siftDown(0);
+      }
+    }
+
+    /**
+     * @return the heap positions from the best to the worst hit
+     */
+    int[] sorted() {
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          if (worse(indices[a], scores[a], indices[b], scores[b])) {
+            return 1;
+          }
+          return worse(indices[b], scores[b], indices[a], scores[a]) ? -1 : 0;
+        }
+      });
+      int[] result = new int[size];
+      for (int i = 0; i < size; i++) {
+        result[i] = order[i];
+      }
+      return result;
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!worse(indices[i], scores[i], indices[parent], scores[parent])) {
+          break;
+        }
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int worst = i;
+        int left = 2 * i + 1;
+        int right = left + 1;
+        if (left < size && worse(indices[left], scores[left], indices[worst], scores[worst])) {
+          worst = left;
+        }
+        if (right < size && worse(indices[right], scores[right], indices[worst], scores[worst])) {
+          worst = right;
+        }
+        if (worst == i) {
+          return;
+        }
+        swap(i, worst);
+        i = worst;
+      }
+    }
+
+    private void swap(int i, int j) {
+      int index = indices[i];
+      indices[i] = indices[j];
+      indices[j] = index;
+      double score = scores[i];
+      scores[i] = scores[j];
+      scores[j] = score;
+    }
+
+    /**
+     * lower score is worse, for equal scores the later added one
+     */
+    private static boolean worse(int index, double score, int otherIndex, double otherScore) {
+      return score < otherScore || (score == otherScore && index > otherIndex);
+    }
+  }
+
+}
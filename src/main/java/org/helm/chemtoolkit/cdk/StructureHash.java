@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code StructureHash} 64 and 128 bit hashes of canonical smiles (MurmurHash3, x64 128 bit variant, seed 0). Equal
+ * canonical smiles give equal hashes, so registries can compare structures by two longs instead of strings.
+ */
+public final class StructureHash {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private StructureHash() {
+  }
+
+  /**
+   * @param canonicalSmiles canonical smiles
+   * @return the first half of {@link #hash128(String)}
+   */
+  public static long hash64(String canonicalSmiles) {
+    return hash128(canonicalSmiles)[0];
+  }
+
+  /**
+   * @param canonicalSmiles canonical smiles
+   * @return the 128 bit hash of the UTF-8 bytes as two longs
+   */
+  public static long[] hash128(String canonicalSmiles) {
+    byte[] data = canonicalSmiles.getBytes(StandardCharsets.UTF_8);
+    int length = data.length;
+    int blocks = length / 16;
+    long h1 = 0;
+    long h2 = 0;
+
+    for (int i = 0; i < blocks; i++) {
+      long k1 = getLong(data, 16 * i);
+      long k2 = getLong(data, 16 * i + 8);
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int tail = 16 * blocks;
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = length - tail - 1; i >= 8; i--) {
+      k2 ^= (data[tail + i] & 0xffL) << (8 * (i - 8));
+    }
+    for (int i = Math.min(length - tail, 8) - 1; i >= 0; i--) {
+      k1 ^= (data[tail + i] & 0xffL) << (8 * i);
+    }
+    h1 ^= mixK1(k1);
+    h2 ^= mixK2(k2);
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    return new long[] {h1, h2};
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    long result = 0;
+    for (int i = 7; i >= 0; i--) {
+      result = (result << 8) | (data[offset + i] & 0xffL);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    return k1 * C2;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    return k2 * C1;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.cdk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.isomorphism.AtomMatcher;
+import org.openscience.cdk.isomorphism.BondMatcher;
+import org.openscience.cdk.isomorphism.Pattern;
+import org.openscience.cdk.isomorphism.VentoFoggia;
+
+/**
+ * {@code SubstructureIndex} answers which of a large set of molecules contain a query structure. Every molecule is
+ * stored with its path fingerprint, packed into one {@code long[]} for the whole index. A query is first screened by
+ * a bitwise subset test of its fingerprint, only the molecules which pass are matched atom by atom. Both steps run in
+ * parallel over ranges of the index.
+ * <p>
+ * Aromaticity is perceived on copies of added molecules and queries with the Daylight model, so structures read from
+ * kekule and aromatic smiles or molfiles match each other and the molecules of the caller are left unchanged. The
+ * index keeps the copies, it is not safe for concurrent modification but searches may run concurrently.
+ */
+public final class SubstructureIndex {
+
+  /** fingerprint size in bits */
+  public static final int FINGERPRINT_SIZE = 1024;
+
+  private static final int WORDS = FINGERPRINT_SIZE / 64;
+
+  /** molecules per parallel search task */
+  private static final int RANGE_SIZE = 4096;
+
+  private final ForkJoinPool pool;
+
+  private long[] fingerprints = new long[16 * WORDS];
+
+  private IAtomContainer[] molecules = new IAtomContainer[16];
+
+  private String[] ids = new String[16];
+
+  private int size;
+
+  /**
+   * creates an index which runs on the shared batch pool
+   */
+  public SubstructureIndex() {
+    this(BatchExecutor.getDefaultPool());
+  }
+
+  /**
+   * @param pool pool for adding and searching in parallel
+   */
+  public SubstructureIndex(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * adds a molecule
+   *
+   * @param id identifier returned by searches
+   * @param molecule molecule to add, the index keeps a copy
+   * @throws CTKException if the fingerprint cannot be computed
+   */
+  public void add(String id, AbstractMolecule molecule) throws CTKException {
+    IAtomContainer copy = aromaticCopy((IAtomContainer) molecule.getMolecule());
+    append(id, copy, pathFingerprint(copy));
+  }
+
+  /**
+   * adds molecules, their fingerprints are computed in parallel
+   *
+   * @param molecules molecules by identifier, the index keeps copies
+   * @return the error of every molecule which could not be added, by identifier
+   */
+  public Map<String, CTKException> addAll(Map<String, ? extends AbstractMolecule> molecules) {
+    final List<String> keys = new ArrayList<>(molecules.keySet());
+    final List<IAtomContainer> containers = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      containers.add((IAtomContainer) molecules.get(key).getMolecule());
+    }
+    List<BatchResult<Entry>> results =
+        BatchExecutor.run(pool, containers, new BatchExecutor.Task<IAtomContainer, Entry>() {
+          @Override
+          public Entry apply(IAtomContainer item) throws CTKException {
+            IAtomContainer copy = aromaticCopy(item);
+            return new Entry(copy, pathFingerprint(copy));
+          }
+        });
+
+    Map<String, CTKException> errors = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      BatchResult<Entry> result = results.get(i);
+      if (result.isSuccess()) {
+        append(keys.get(i), result.getValue().molecule, result.getValue().fingerprint);
+      } else {
+        errors.put(keys.get(i), result.getError());
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * returns the molecules which contain the query, matched by element and bond order. Aromatic bonds match each
+   * other but no other bond, so a single or double bond of the query does not match the bonds of an aromatic ring,
+   * whatever their kekule order.
+   *
+   * @param query query structure
+   * @return identifiers of the matching molecules in the order they were added
+   * @throws CTKException if the fingerprint of the query cannot be computed
+   */
+  public List<String> search(AbstractMolecule query) throws CTKException {
+    final IAtomContainer container = aromaticCopy((IAtomContainer) query.getMolecule());
+    final long[] queryFingerprint = pathFingerprint(container);
+    final long[] words = fingerprints;
+    final IAtomContainer[] targets = molecules;
+    final int count = size;
+
+    List<Integer> ranges = new ArrayList<>();
+    for (int from = 0; from < count; from += RANGE_SIZE) {
+      ranges.add(from);
+    }
+    List<BatchResult<int[]>> results = BatchExecutor.run(pool, ranges, new BatchExecutor.Task<Integer, int[]>() {
+      @Override
+      public int[] apply(Integer from) throws CTKException {
+        int[] candidates = screen(queryFingerprint, words, from, Math.min(from + RANGE_SIZE, count));
+        Pattern pattern = null;
+        int matches = 0;
+        for (int candidate : candidates) {
+          if (pattern == null) {
+            // the fingerprint writes aromatic bonds without their order, the match has to do the same
+            pattern = VentoFoggia.findSubstructure(container, AtomMatcher.forElement(), BondMatcher.forStrictOrder());
+          }
+          if (pattern.matches(targets[candidate])) {
+            candidates[matches++] = candidate;
+          }
+        }
+        return Arrays.copyOf(candidates, matches);
+      }
+    });
+
+    List<String> result = new ArrayList<>();
+    for (BatchResult<int[]> range : results) {
+      for (int index : range.get()) {
+        result.add(ids[index]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * returns the number of molecules whose fingerprint contains the fingerprint of the query, without the atom by
+   * atom match
+   *
+   * @param query query structure
+   * @return number of candidates
+   * @throws CTKException if the fingerprint of the query cannot be computed
+   */
+  public int countCandidates(AbstractMolecule query) throws CTKException {
+    return screen(fingerprint((IAtomContainer) query.getMolecule()), fingerprints, 0, size).length;
+  }
+
+  /**
+   * @return number of molecules
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * returns the positions of the fingerprints in the range which have all bits of the query set
+   */
+  static int[] screen(long[] query, long[] words, int from, int to) {
+    // only the non-empty words of the query are tested
+    int[] positions = new int[WORDS];
+    int used = 0;
+    for (int w = 0; w < WORDS; w++) {
+      if (query[w] != 0) {
+        positions[used++] = w;
+      }
+    }
+    int[] result = new int[to - from];
+    int count = 0;
+    next: for (int i = from; i < to; i++) {
+      int base = i * WORDS;
+      for (int j = 0; j < used; j++) {
+        long bits = query[positions[j]];
+        if ((words[base + positions[j]] & bits) != bits) {
+          continue next;
+        }
+      }
+      result[count++] = i;
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * returns the path fingerprint of the container, aromaticity is perceived on a copy
+   *
+   * @param container given container, left unchanged
+   * @return the fingerprint as {@link #FINGERPRINT_SIZE} bits packed into longs
+   * @throws CTKException if the aromaticity or the fingerprint cannot be computed
+   */
+  static long[] fingerprint(IAtomContainer container) throws CTKException {
+    return pathFingerprint(aromaticCopy(container));
+  }
+
+  /**
+   * returns a copy of the container with the aromaticity perceived
+   */
+  private static IAtomContainer aromaticCopy(IAtomContainer container) throws CTKException {
+    IAtomContainer copy = CDKMolecule.cloneContainer(container);
+    try {
+      CDKTools.get().daylightAromaticity.apply(copy);
+    } catch (CDKException e) {
+      throw new CTKException(e.getMessage(), e);
+    }
+    return copy;
+  }
+
+  /**
+   * returns the path fingerprint of a container whose aromaticity has been perceived
+   */
+  private static long[] pathFingerprint(IAtomContainer container) throws CTKException {
+    try {
+      BitSet bits = CDKTools.get().fingerprinter.getBitFingerprint(container).asBitSet();
+      return Arrays.copyOf(bits.toLongArray(), WORDS);
+    } catch (CDKException e) {
+      throw new CTKException(e.getMessage(), e);
+    }
+  }
+
+  private void append(String id, IAtomContainer container, long[] fingerprint) {
+    if (size == ids.length) {
+      int capacity = 2 * size;
+      ids = Arrays.copyOf(ids, capacity);
+      molecules = Arrays.copyOf(molecules, capacity);
+      fingerprints = Arrays.copyOf(fingerprints, capacity * WORDS);
+    }
+    System.arraycopy(fingerprint, 0, fingerprints, size * WORDS, WORDS);
+    molecules[size] = container;
+    ids[size] = id;
+    size++;
+  }
+
+  /**
+   * a perceived copy of a molecule with its fingerprint
+   */
+  private static final class Entry {
+
+    final IAtomContainer molecule;
+
+    final long[] fingerprint;
+
+    Entry(IAtomContainer molecule, long[] fingerprint) {
+      this.molecule = molecule;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+}
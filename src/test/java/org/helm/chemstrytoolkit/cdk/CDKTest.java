@@ -16,18 +16,72 @@
  ******************************************************************************/
 package org.helm.chemstrytoolkit.cdk;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import javax.vecmath.Point2d;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
 import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
 import org.helm.chemtoolkit.AbstractMolecule;
 import org.helm.chemtoolkit.Attachment;
 import org.helm.chemtoolkit.AttachmentList;
 import org.helm.chemtoolkit.CTKException;
 import org.helm.chemtoolkit.CTKSmilesException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.ManipulatorFactory;
+import org.helm.chemtoolkit.MoleculeInfo;
+import org.helm.chemtoolkit.cdk.BatchResult;
+import org.helm.chemtoolkit.cdk.CDKBond;
+import org.helm.chemtoolkit.cdk.CDKManipulator;
+import org.helm.chemtoolkit.cdk.CDKMolecule;
+import org.helm.chemtoolkit.cdk.FormatDetector;
+import org.helm.chemtoolkit.cdk.LruCache;
+import org.helm.chemtoolkit.cdk.MoleculeProperties;
+import org.helm.chemtoolkit.cdk.MonomerConnection;
+import org.helm.chemtoolkit.cdk.MonomerSnapshot;
+import org.helm.chemtoolkit.cdk.SDFRecordReader;
+import org.helm.chemtoolkit.cdk.SDFileIndex;
+import org.helm.chemtoolkit.cdk.SimilarityIndex;
+import org.helm.chemtoolkit.cdk.StructureHash;
+import org.helm.chemtoolkit.cdk.SubstructureIndex;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.aromaticity.ElectronDonation;
+import org.openscience.cdk.geometry.GeometryUtil;
+import org.openscience.cdk.graph.Cycles;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IPseudoAtom;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.isomorphism.AtomMatcher;
+import org.openscience.cdk.isomorphism.BondMatcher;
+import org.openscience.cdk.isomorphism.Pattern;
+import org.openscience.cdk.isomorphism.VentoFoggia;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -217,4 +271,983 @@ public class CDKTest extends TestBase {
     AbstractMolecule molecule  = manipulator.getMolecule("[H:1]N1CC[C@H]1C([OH:2])=O 2-carboxyazetidine", null);
     Assert.assertNotNull(molecule.getRGroupAtom(1, true));
   }
+
+  @Test(groups = {"CDKTest"})
+  public void moleculeCache() throws Exception {
+    CDKManipulator cached = new CDKManipulator();
+    cached.setMoleculeCacheSize(2);
+    String smiles = "[*:1]N[C@H](CCCCN[*:3])C([*:2])=O";
+
+    AbstractMolecule first = cached.getMolecule(smiles, null);
+    AbstractMolecule second = cached.getMolecule(smiles + " ", null);
+    Assert.assertNotSame(first.getMolecule(), second.getMolecule());
+
+    first.removeINode(first.getRGroupAtom(1, true));
+    AbstractMolecule third = cached.getMolecule(smiles, null);
+    Assert.assertNotNull(third.getRGroupAtom(1, true));
+    Assert.assertEquals(cached.convertMolecule(third, StType.SMILES),
+        manipulator.convertMolecule(manipulator.getMolecule(smiles, null), StType.SMILES));
+
+    cached.getMolecule("CCO", null);
+    cached.getMolecule("CCN", null);
+
+    LruCache<?, ?> cache = cached.getMoleculeCache();
+    Assert.assertEquals(cache.getHitCount(), 2);
+    Assert.assertEquals(cache.getMissCount(), 3);
+    Assert.assertEquals(cache.getEvictionCount(), 1);
+    Assert.assertEquals(cache.size(), 2);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void canonicalCache() throws Exception {
+    CDKManipulator cached = new CDKManipulator();
+    cached.setCanonicalCacheSize(10);
+    String first = cached.canonicalize("OCC");
+    Assert.assertEquals(first, manipulator.canonicalize("OCC"));
+    Assert.assertSame(cached.canonicalize(" OCC"), first);
+    Assert.assertSame(cached.canonicalize("C(O)C"), first);
+    Assert.assertEquals(cached.getCanonicalCache().getHitCount(), 1);
+    Assert.assertEquals(cached.getCanonicalCache().getMissCount(), 2);
+
+    Assert.assertEquals(cached.getStructureHash("CCO"), cached.getStructureHash("OCC"));
+    Assert.assertNotEquals(cached.getStructureHash("CCO"), cached.getStructureHash("CCN"));
+    Assert.assertEquals(cached.getStructureHash128("C[C@H](N)C(=O)O"), cached.getStructureHash128("N[C@@H](C)C(O)=O"));
+    Assert.assertNotEquals(cached.getStructureHash128("C[C@H](N)C(=O)O"),
+        cached.getStructureHash128("C[C@@H](N)C(=O)O"));
+    Assert.assertNotEquals(cached.getStructureHash("[13CH4]"), cached.getStructureHash("C"));
+    Assert.assertNotEquals(cached.getStructureHash128("[13CH4]"), cached.getStructureHash128("C"));
+    Assert.assertEquals(StructureHash.hash64(""), 0);
+    Assert.assertEquals(StructureHash.hash128("hello"), new long[] {0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L});
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void inchi() throws Exception {
+    CDKManipulator cached = new CDKManipulator();
+    cached.setCanonicalCacheSize(10);
+    cached.setInChICacheSize(10);
+    Assert.assertEquals(cached.getInChI("CCO"), "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+    Assert.assertEquals(cached.getInChIKey("OCC"), "LFQSCWFLJHTTHZ-UHFFFAOYSA-N");
+    Assert.assertEquals(cached.getInChIKey(manipulator.convert("C[C@H](N)C(O)=O", StType.SMILES)),
+        "QNAYBMKLOCPYGJ-REOHCLBHSA-N");
+    Assert.assertEquals(cached.getInChICache().getHitCount(), 1);
+
+    List<BatchResult<String>> keys = cached.getInChIKeys(Arrays.asList("N[C@@H](C)C(O)=O", "CCO", "C1CC"));
+    Assert.assertEquals(keys.get(0).get(), "QNAYBMKLOCPYGJ-REOHCLBHSA-N");
+    Assert.assertEquals(keys.get(1).get(), "LFQSCWFLJHTTHZ-UHFFFAOYSA-N");
+    Assert.assertFalse(keys.get(2).isSuccess());
+    Assert.assertEquals(new CDKManipulator().getInChIs(Arrays.asList("CCO")).get(0).get(),
+        "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3");
+
+    // an isotope label is a different structure for the cache
+    Assert.assertEquals(cached.getInChIKey("C"), "VNWKTOKETHGBQD-UHFFFAOYSA-N");
+    Assert.assertEquals(cached.getInChIKey("[13CH4]"), "VNWKTOKETHGBQD-OUBTZVSYSA-N");
+    Assert.assertEquals(cached.getInChIKey("[13CH4]"), "VNWKTOKETHGBQD-OUBTZVSYSA-N");
+    Assert.assertEquals(cached.getInChIKey("C"), "VNWKTOKETHGBQD-UHFFFAOYSA-N");
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void getMoleculeDetectsFormat() throws Exception {
+    String smiles = "[*:1]N[C@H](CCCCN[*:3])C([*:2])=O D-Lysine";
+    String molfile = manipulator.convert(smiles, StType.SMILES);
+    Assert.assertEquals(FormatDetector.detect(smiles), StType.SMILES);
+    Assert.assertEquals(FormatDetector.detect(smiles + "\r\n"), StType.SMILES);
+    Assert.assertEquals(FormatDetector.detect(molfile), StType.MOLFILE);
+
+    AbstractMolecule fromMolfile = manipulator.getMolecule(molfile, null);
+    Assert.assertNotNull(fromMolfile.getRGroupAtom(3, true));
+    Assert.assertEquals(manipulator.convertMolecule(fromMolfile, StType.SMILES),
+        manipulator.convertMolecule(manipulator.getMolecule(smiles, null), StType.SMILES));
+  }
+
+  @Test(groups = {"CDKTest"}, expectedExceptions = CTKException.class)
+  public void getMoleculeInvalidSmiles() throws Exception {
+    manipulator.getMolecule("C1CC(", null);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void concurrentConversion() throws Exception {
+    final String[] inputs = {"[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", "O[C@H]1[C@H]([*:3])O[C@H](CO[*:1])[C@H]1O[*:2]",
+        "CCOC1=C(C=C(C=C1)S(=O)(=O)N1CCN(C)CC1)C1=NC2=C(N(C)N=C2CC)C(=O)N1", "[H:1]N1CC[C@H]1C([OH:2])=O"};
+    final String[] expected = new String[inputs.length * 2];
+    for (int i = 0; i < inputs.length; i++) {
+      expected[2 * i] = manipulator.canonicalize(inputs[i]);
+      expected[2 * i + 1] = manipulator.convert(manipulator.convert(inputs[i], StType.SMILES), StType.MOLFILE);
+    }
+
+    int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String[]>> futures = new ArrayList<>();
+      for (int t = 0; t < threads * 4; t++) {
+        final int offset = t;
+        futures.add(executor.submit(new Callable<String[]>() {
+          @Override
+          public String[] call() throws Exception {
+            String[] results = new String[expected.length];
+            for (int k = 0; k < inputs.length; k++) {
+              int i = (k + offset) % inputs.length;
+              results[2 * i] = manipulator.canonicalize(inputs[i]);
+              results[2 * i + 1] =
+                  manipulator.convert(manipulator.convert(inputs[i], StType.SMILES), StType.MOLFILE);
+            }
+            return results;
+          }
+        }));
+      }
+      for (Future<String[]> future : futures) {
+        Assert.assertEquals(future.get(), expected);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void convertAll() throws Exception {
+    List<String> smiles = Arrays.asList("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", "C1CC(",
+        "O[C@H]1[C@H]([*:3])O[C@H](CO[*:1])[C@H]1O[*:2]");
+    CDKManipulator batch = new CDKManipulator();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    batch.setBatchPool(pool);
+    try {
+      List<BatchResult<String>> molfiles = batch.convertAll(smiles, StType.SMILES);
+      Assert.assertEquals(molfiles.size(), 3);
+      Assert.assertFalse(molfiles.get(1).isSuccess());
+      Assert.assertNotNull(molfiles.get(1).getError());
+
+      List<String> valid = Arrays.asList(molfiles.get(0).get(), molfiles.get(2).get());
+      List<BatchResult<String>> roundTrip = batch.convertAll(valid, StType.MOLFILE);
+      Assert.assertEquals(roundTrip.get(0).get(), manipulator.convert(valid.get(0), StType.MOLFILE));
+      Assert.assertEquals(roundTrip.get(1).get(), manipulator.convert(valid.get(1), StType.MOLFILE));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void convertSDFile() throws Exception {
+    String lysine = "[*:1]N[C@H](CCCCN[*:3])C([*:2])=O";
+    String ribose = "O[C@H]1[C@H]([*:3])O[C@H](CO[*:1])[C@H]1O[*:2]";
+    String sdf = manipulator.convert(lysine, StType.SMILES) + "> <ID>\nK\n\n$$$$\n" + "broken\nrecord\n$$$$\n"
+        + manipulator.convert(ribose, StType.SMILES) + "$$$$\n";
+    CDKManipulator cdk = (CDKManipulator) manipulator;
+
+    ByteArrayOutputStream smiles = new ByteArrayOutputStream();
+    long converted =
+        cdk.convertSDFile(new ByteArrayInputStream(sdf.getBytes(StandardCharsets.US_ASCII)), smiles, StType.SMILES);
+    Assert.assertEquals(converted, 2);
+    String[] lines = new String(smiles.toByteArray(), StandardCharsets.US_ASCII).split("\n", -1);
+    Assert.assertEquals(lines.length, 4);
+    Assert.assertEquals(lines[0], manipulator.convert(manipulator.convert(lysine, StType.SMILES), StType.MOLFILE));
+    Assert.assertEquals(lines[1], "");
+    Assert.assertEquals(lines[2], manipulator.convert(manipulator.convert(ribose, StType.SMILES), StType.MOLFILE));
+
+    ByteArrayOutputStream molfiles = new ByteArrayOutputStream();
+    cdk.convertSDFile(new ByteArrayInputStream(sdf.getBytes(StandardCharsets.US_ASCII)), molfiles, StType.MOLFILE);
+    String output = new String(molfiles.toByteArray(), StandardCharsets.US_ASCII);
+    Assert.assertEquals(output.split("\\$\\$\\$\\$\n", -1).length, 4);
+    Assert.assertTrue(output.contains("> <ID>\nK\n"));
+    Assert.assertTrue(output.contains("broken\nrecord\n$$$$\n"));
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void sdFileIndex() throws Exception {
+    String[] smiles = {"[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", "O[C@H]1[C@H]([*:3])O[C@H](CO[*:1])[C@H]1O[*:2]",
+        "CCOC1=C(C=C(C=C1)S(=O)(=O)N1CCN(C)CC1)C1=NC2=C(N(C)N=C2CC)C(=O)N1"};
+    StringBuilder sdf = new StringBuilder();
+    for (String item : smiles) {
+      sdf.append(manipulator.convert(item, StType.SMILES)).append("> <SMILES>\n").append(item).append("\n\n$$$$\n");
+    }
+    sdf.append("\n$$$$\n");
+    Path file = Paths.get("test-output", "index.sdf");
+    Files.write(file, sdf.toString().getBytes(StandardCharsets.US_ASCII));
+    Files.deleteIfExists(SDFileIndex.getIndexFile(file));
+
+    try (SDFileIndex index = SDFileIndex.open(file);
+        SDFRecordReader reader = new SDFRecordReader(Files.newInputStream(file))) {
+      Assert.assertTrue(Files.exists(SDFileIndex.getIndexFile(file)));
+      Assert.assertEquals(index.size(), smiles.length);
+      for (int i = 0; i < smiles.length; i++) {
+        Assert.assertEquals(index.getRecord(i), reader.next());
+      }
+      Assert.assertNull(reader.next());
+    }
+
+    try (SDFileIndex index = SDFileIndex.open(file)) {
+      AbstractMolecule molecule = manipulator.getMolecule(index.getRecord(1), null);
+      Assert.assertEquals(manipulator.convertMolecule(molecule, StType.SMILES),
+          manipulator.convert(manipulator.convert(smiles[1], StType.SMILES), StType.MOLFILE));
+    }
+
+    // an index which cannot be written is kept in memory
+    Path indexFile = SDFileIndex.getIndexFile(file);
+    Files.delete(indexFile);
+    Files.createDirectory(indexFile);
+    try (SDFileIndex index = SDFileIndex.open(file)) {
+      Assert.assertEquals(index.size(), smiles.length);
+    } finally {
+      Files.delete(indexFile);
+    }
+    SDFileIndex.open(file).close();
+    Assert.assertTrue(Files.isRegularFile(indexFile));
+
+    // records with windows line endings are returned like the reader returns them
+    Path crlf = Paths.get("test-output", "index-crlf.sdf");
+    Files.write(crlf, sdf.toString().replace("\n", "\r\n").getBytes(StandardCharsets.US_ASCII));
+    try (SDFileIndex index = SDFileIndex.build(crlf);
+        SDFRecordReader reader = new SDFRecordReader(Files.newInputStream(crlf))) {
+      Assert.assertEquals(index.size(), smiles.length);
+      for (int i = 0; i < smiles.length; i++) {
+        Assert.assertEquals(index.getRecord(i), reader.next());
+      }
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void renderCache() throws Exception {
+    CDKManipulator cached = new CDKManipulator();
+    cached.setRenderCacheSize(1 << 20);
+    String molfile = manipulator.convert("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", StType.SMILES);
+
+    byte[] first = cached.renderMol(molfile, OutputType.PNG, 200, 200, 0xFFFFFF);
+    byte[] second = cached.renderMol(molfile, OutputType.PNG, 200, 200, 0xFFFFFF);
+    Assert.assertEquals(second, first);
+    Assert.assertNotSame(second, first);
+    cached.renderMol(molfile, OutputType.PNG, 300, 200, 0xFFFFFF);
+    cached.renderSequence("GLY", OutputType.PNG, 200, 200, 0xFFFFFF);
+    cached.renderSequence("GLY", OutputType.PNG, 200, 200, 0xFFFFFF);
+
+    LruCache<?, ?> cache = cached.getRenderCache();
+    Assert.assertEquals(cache.getHitCount(), 2);
+    Assert.assertEquals(cache.getMissCount(), 3);
+    Assert.assertEquals(cache.size(), 3);
+    Assert.assertTrue(cache.getWeight() > first.length);
+
+    // images encoded with another compression quality are not taken from the cache
+    byte[] jpg = cached.renderMol(molfile, OutputType.JPG, 200, 200, 0xFFFFFF);
+    cached.setImageCompressionQuality(0.1f);
+    Assert.assertNotEquals(cached.renderMol(molfile, OutputType.JPG, 200, 200, 0xFFFFFF), jpg);
+
+    CDKManipulator small = new CDKManipulator();
+    small.setRenderCacheSize(first.length + 1);
+    small.renderMol(molfile, OutputType.PNG, 200, 200, 0xFFFFFF);
+    small.renderMol(molfile, OutputType.PNG, 200, 200, 0x000000);
+    Assert.assertEquals(small.getRenderCache().size(), 1);
+    Assert.assertTrue(small.getRenderCache().getWeight() <= first.length + 1);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void renderSvg() throws Exception {
+    CDKManipulator cdk = (CDKManipulator) manipulator;
+    String molfile = manipulator.convert("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", StType.SMILES);
+    String svg = new String(cdk.renderMolSvg(molfile, 400, 300, 0xD3D3D3), StandardCharsets.UTF_8);
+    Assert.assertTrue(svg.contains("<svg"));
+    Assert.assertTrue(svg.trim().endsWith("</svg>"));
+
+    svg = new String(cdk.renderSequenceSvg("GLYALA", 400, 300, 0xD3D3D3), StandardCharsets.UTF_8);
+    Assert.assertTrue(svg.trim().endsWith("</svg>"));
+    Files.write(Paths.get("test-output", "testSequence.svg"), svg.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void renderMolToStream() throws Exception {
+    CDKManipulator cdk = new CDKManipulator();
+    String molfile = manipulator.convert("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", StType.SMILES);
+    byte[] expected = cdk.renderMol(molfile, OutputType.PNG, 300, 300, 0xD3D3D3);
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    cdk.renderMol(molfile, OutputType.PNG, 300, 300, 0xD3D3D3, stream);
+    Assert.assertEquals(stream.toByteArray(), expected);
+
+    ByteArrayOutputStream channel = new ByteArrayOutputStream();
+    cdk.renderMol(molfile, OutputType.PNG, 300, 300, 0xD3D3D3, Channels.newChannel(channel));
+    Assert.assertEquals(channel.toByteArray(), expected);
+
+    cdk.setImageCompressionQuality(1f);
+    ByteArrayOutputStream fast = new ByteArrayOutputStream();
+    cdk.renderMol(molfile, OutputType.PNG, 300, 300, 0xD3D3D3, fast);
+    Assert.assertTrue(fast.size() > 0);
+
+    ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+    cdk.renderMol(molfile, OutputType.JPG, 300, 300, 0xD3D3D3, jpg);
+    Assert.assertTrue(jpg.size() > 0);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void lazyCoordinates() throws Exception {
+    String smiles = "[*:1]N[C@H](CCCCN[*:3])C([*:2])=O";
+    CDKMolecule molecule = (CDKMolecule) manipulator.getMolecule(smiles, null);
+    Assert.assertFalse(molecule.hasCoordinates());
+    String canonical = manipulator.convertMolecule(molecule, StType.SMILES);
+    Assert.assertFalse(molecule.hasCoordinates());
+
+    String molfile = manipulator.convertMolecule(molecule, StType.MOLFILE);
+    Assert.assertTrue(molecule.hasCoordinates());
+    Assert.assertEquals(manipulator.convert(molfile, StType.MOLFILE), canonical);
+    Assert.assertTrue(((CDKMolecule) manipulator.getMolecule(molfile, null)).hasCoordinates());
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void layoutTemplates() throws Exception {
+    CDKManipulator templated = new CDKManipulator();
+    templated.setLayoutTemplateCacheSize(8);
+    String alanine = "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|";
+    alanine = templated.convertExtendedSmiles(alanine);
+    AttachmentList groups = new AttachmentList();
+    groups.add(new Attachment("R1-H", "R1", "H", templated.convertExtendedSmiles("[*][H] |$_R1;$|")));
+    groups.add(new Attachment("R2-OH", "R2", "OH", templated.convertExtendedSmiles("O[*] |$;_R2$|")));
+
+    CDKMolecule first = (CDKMolecule) templated.getMolecule(alanine, groups);
+    CDKMolecule second = (CDKMolecule) templated.getMolecule(alanine, groups.cloneList());
+    Assert.assertTrue(first.hasCoordinates());
+    Assert.assertTrue(second.hasCoordinates());
+    Assert.assertEquals(templated.getLayoutTemplateCache().getHitCount(), 1);
+    Assert.assertEquals(templated.getLayoutTemplateCache().getMissCount(), 1);
+
+    AbstractMolecule dipeptide =
+        templated.merge(first, first.getRGroupAtom(2, true), second, second.getRGroupAtom(1, true));
+    Assert.assertTrue(((CDKMolecule) dipeptide).hasCoordinates());
+
+    AbstractMolecule plain1 = manipulator.getMolecule(alanine, groups.cloneList());
+    AbstractMolecule plain2 = manipulator.getMolecule(alanine, groups.cloneList());
+    AbstractMolecule expected =
+        manipulator.merge(plain1, plain1.getRGroupAtom(2, true), plain2, plain2.getRGroupAtom(1, true));
+    Assert.assertEquals(templated.convertMolecule(dipeptide, StType.SMILES),
+        manipulator.convertMolecule(expected, StType.SMILES));
+
+    // the placed monomers neither overlap nor stretch the new peptide bond
+    IAtomContainer container = (IAtomContainer) dipeptide.getMolecule();
+    double bondLength = GeometryUtil.getBondLengthAverage(container);
+    for (IBond bond : container.bonds()) {
+      double length = bond.getAtom(0).getPoint2d().distance(bond.getAtom(1).getPoint2d());
+      Assert.assertEquals(length, bondLength, 0.1 * bondLength);
+    }
+    for (int i = 0; i < container.getAtomCount(); i++) {
+      for (int j = i + 1; j < container.getAtomCount(); j++) {
+        Assert.assertTrue(
+            container.getAtom(i).getPoint2d().distance(container.getAtom(j).getPoint2d()) > 0.3 * bondLength);
+      }
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void incrementalLayout() throws Exception {
+    CDKManipulator incremental = new CDKManipulator();
+    incremental.setIncrementalLayout(true);
+    String alanine = incremental.convertExtendedSmiles("C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|");
+    AttachmentList groups = new AttachmentList();
+    groups.add(new Attachment("R1-H", "R1", "H", incremental.convertExtendedSmiles("[*][H] |$_R1;$|")));
+    groups.add(new Attachment("R2-OH", "R2", "OH", incremental.convertExtendedSmiles("O[*] |$;_R2$|")));
+
+    AbstractMolecule polymer = incremental.getMolecule(alanine, groups);
+    for (int i = 0; i < 3; i++) {
+      AbstractMolecule monomer = incremental.getMolecule(alanine, groups.cloneList());
+      Assert.assertFalse(((CDKMolecule) monomer).hasCoordinates());
+      Map<IAtom, Point2d> placed = new IdentityHashMap<>();
+      for (IAtom atom : ((IAtomContainer) polymer.getMolecule()).atoms()) {
+        if (atom.getPoint2d() != null) {
+          placed.put(atom, new Point2d(atom.getPoint2d()));
+        }
+      }
+      polymer = incremental.merge(polymer, polymer.getRGroupAtom(2, true), monomer, monomer.getRGroupAtom(1, true));
+      Assert.assertTrue(((CDKMolecule) polymer).hasCoordinates());
+
+      // the atoms placed before keep their coordinates
+      for (IAtom atom : ((IAtomContainer) polymer.getMolecule()).atoms()) {
+        if (placed.containsKey(atom)) {
+          Assert.assertEquals(atom.getPoint2d(), placed.get(atom));
+        }
+      }
+      Assert.assertEquals(placed.isEmpty(), i == 0);
+    }
+    Assert.assertEquals(incremental.convertMolecule(polymer, StType.SMILES),
+        manipulator.convertMolecule(manipulator
+            .getMolecule("C[C@H](N*)C(=O)N[C@@H](C)C(=O)N[C@@H](C)C(=O)N[C@@H](C)C(*)=O", null), StType.SMILES));
+
+    // a rejected merge leaves both monomers as they were
+    String chiral = incremental.convertExtendedSmiles("N[C@@H](C)[*] |$;;;_R1$|");
+    AbstractMolecule first = incremental.getMolecule(chiral, new AttachmentList());
+    AbstractMolecule second = incremental.getMolecule(chiral, new AttachmentList());
+    try {
+      incremental.merge(first, first.getRGroupAtom(1, true), second, second.getRGroupAtom(1, true));
+      Assert.fail("both R atoms are connected to chiral centers");
+    } catch (CTKException e) {
+      Assert.assertFalse(((CDKMolecule) first).hasCoordinates());
+      Assert.assertFalse(((CDKMolecule) second).hasCoordinates());
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void monomerSnapshot() throws Exception {
+    Map<String, String> smiles = new LinkedHashMap<>();
+    smiles.put("A", "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|");
+    smiles.put("F", "[*]N[C@@H](Cc1ccccc1)C([*])=O |$_R1;;;;;;;;;;;_R2;$|");
+    smiles.put("R", "O[C@H]1[C@H]([*])O[C@H](CO[*])[C@H]1O[*] |$;;;_R3;;;;;_R1;;;_R2$|");
+    smiles.put("E", "[*]C/C=C/C([*])=O |$_R1;;;;;_R2;$|");
+    AttachmentList groups = new AttachmentList();
+    groups.add(new Attachment("R1-H", "R1", "H", manipulator.convertExtendedSmiles("[*][H] |$_R1;$|")));
+    groups.add(new Attachment("R2-OH", "R2", "OH", manipulator.convertExtendedSmiles("O[*] |$;_R2$|")));
+
+    Map<String, AbstractMolecule> monomers = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : smiles.entrySet()) {
+      monomers.put(entry.getKey(),
+          manipulator.getMolecule(manipulator.convertExtendedSmiles(entry.getValue()), groups.cloneList()));
+    }
+    Path file = Paths.get("test-output", "monomers.snapshot");
+    MonomerSnapshot.write(file, monomers);
+
+    try (MonomerSnapshot snapshot = MonomerSnapshot.open(file)) {
+      Assert.assertEquals(snapshot.size(), 4);
+      Assert.assertEquals(snapshot.getIds(), monomers.keySet());
+      Assert.assertNull(snapshot.getMolecule("X"));
+      for (Map.Entry<String, AbstractMolecule> entry : monomers.entrySet()) {
+        CDKMolecule expected = (CDKMolecule) entry.getValue();
+        CDKMolecule restored = snapshot.getMolecule(entry.getKey());
+        Assert.assertNotSame(restored, snapshot.getMolecule(entry.getKey()));
+        Assert.assertTrue(restored.hasCoordinates());
+        Assert.assertEquals(manipulator.convertMolecule(restored, StType.SMILES),
+            manipulator.convertMolecule(expected, StType.SMILES));
+        Assert.assertEquals(manipulator.convertMolecule(restored, StType.MOLFILE),
+            manipulator.convertMolecule(expected, StType.MOLFILE));
+        Assert.assertEquals(restored.getRgroups().keySet(), expected.getRgroups().keySet());
+        Assert.assertEquals(restored.getAttachments().size(), 2);
+        Assert.assertEquals(restored.getAttachments().get(1).getSmiles(), groups.get(1).getSmiles());
+      }
+
+      AbstractMolecule a = snapshot.getMolecule("A");
+      AbstractMolecule f = snapshot.getMolecule("F");
+      AbstractMolecule dipeptide = manipulator.merge(a, a.getRGroupAtom(2, true), f, f.getRGroupAtom(1, true));
+      Assert.assertEquals(manipulator.convertMolecule(dipeptide, StType.SMILES),
+          manipulator.convertMolecule(manipulator.getMolecule("C[C@H](N*)C(=O)N[C@@H](Cc1ccccc1)C(*)=O", null),
+              StType.SMILES));
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void binaryEncoding() throws Exception {
+    AbstractMolecule a = manipulator.getMolecule(manipulator.convertExtendedSmiles(
+        "[*]N[C@@H](Cc1ccccc1)C([*])=O |$_R1;;;;;;;;;;;_R2;$|"), null);
+    AbstractMolecule b = manipulator.getMolecule(manipulator.convertExtendedSmiles(
+        "[*]C/C=C/C([*])=O |$_R1;;;;;_R2;$|"), null);
+    CDKMolecule molecule =
+        (CDKMolecule) manipulator.merge(a, a.getRGroupAtom(2, true), b, b.getRGroupAtom(1, true));
+    molecule.generateCoordinates(2);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(2 * molecule.getEncodedSize() + 3);
+    buffer.put(new byte[3]);
+    molecule.writeTo(buffer);
+    molecule.writeTo(buffer);
+    Assert.assertEquals(buffer.remaining(), 0);
+    buffer.flip();
+    buffer.position(3);
+    CDKMolecule first = CDKMolecule.readFrom(buffer);
+    CDKMolecule second = CDKMolecule.readFrom(buffer);
+    Assert.assertEquals(buffer.remaining(), 0);
+    Assert.assertNotSame(first.getMolecule(), second.getMolecule());
+
+    IAtomContainer expected = molecule.getMolecule();
+    IAtomContainer actual = first.getMolecule();
+    Assert.assertEquals(actual.getAtomCount(), expected.getAtomCount());
+    Assert.assertEquals(actual.getBondCount(), expected.getBondCount());
+    for (int i = 0; i < expected.getAtomCount(); i++) {
+      IAtom atom = actual.getAtom(i);
+      Assert.assertEquals(atom.getSymbol(), expected.getAtom(i).getSymbol());
+      Assert.assertEquals(atom.isAromatic(), expected.getAtom(i).isAromatic());
+      Assert.assertEquals(atom.getImplicitHydrogenCount(), expected.getAtom(i).getImplicitHydrogenCount());
+      Assert.assertEquals(atom.getPoint2d(), expected.getAtom(i).getPoint2d());
+      Assert.assertEquals(atom instanceof IPseudoAtom, expected.getAtom(i) instanceof IPseudoAtom);
+      if (atom instanceof IPseudoAtom) {
+        Assert.assertEquals(((IPseudoAtom) atom).getLabel(), ((IPseudoAtom) expected.getAtom(i)).getLabel());
+      }
+    }
+    for (int i = 0; i < expected.getBondCount(); i++) {
+      IBond bond = actual.getBond(i);
+      Assert.assertEquals(bond.getOrder(), expected.getBond(i).getOrder());
+      Assert.assertEquals(bond.isAromatic(), expected.getBond(i).isAromatic());
+      Assert.assertEquals(bond.getStereo(), expected.getBond(i).getStereo());
+      Assert.assertEquals(actual.indexOf(bond.getAtom(0)), expected.indexOf(expected.getBond(i).getAtom(0)));
+      Assert.assertEquals(actual.indexOf(bond.getAtom(1)), expected.indexOf(expected.getBond(i).getAtom(1)));
+    }
+    int stereoCount = 0;
+    for (IStereoElement element : actual.stereoElements()) {
+      stereoCount++;
+    }
+    Assert.assertEquals(stereoCount, 2);
+    Assert.assertTrue(first.hasCoordinates());
+    Assert.assertEquals(first.getRgroups().keySet(), molecule.getRgroups().keySet());
+    Assert.assertEquals(manipulator.convertMolecule(first, StType.SMILES),
+        manipulator.convertMolecule(molecule, StType.SMILES));
+    String molfile = manipulator.convertMolecule(molecule, StType.MOLFILE);
+    Assert.assertEquals(manipulator.convertMolecule(first, StType.MOLFILE), molfile);
+    Assert.assertTrue(molecule.getEncodedSize() < molfile.length() / 2);
+
+    ByteBuffer encoded = molecule.toByteBuffer();
+    encoded.put(0, (byte) 99);
+    try {
+      CDKMolecule.readFrom(encoded);
+      Assert.fail("unsupported version accepted");
+    } catch (CTKException e) {
+      // expected
+    }
+    encoded = molecule.toByteBuffer();
+    encoded.limit(encoded.limit() - 1);
+    try {
+      CDKMolecule.readFrom(encoded);
+      Assert.fail("truncated encoding accepted");
+    } catch (CTKException e) {
+      // expected
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void assemble() throws Exception {
+    CDKManipulator cdk = (CDKManipulator) manipulator;
+    String[] smiles = {manipulator.convertExtendedSmiles("C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|"),
+        manipulator.convertExtendedSmiles("[*]N[C@@H](Cc1ccccc1)C([*])=O |$_R1;;;;;;;;;;;_R2;$|")};
+    AttachmentList groups = new AttachmentList();
+    groups.add(new Attachment("R1-H", "R1", "H", manipulator.convertExtendedSmiles("[*][H] |$_R1;$|")));
+    groups.add(new Attachment("R2-OH", "R2", "OH", manipulator.convertExtendedSmiles("O[*] |$;_R2$|")));
+
+    List<AbstractMolecule> monomers = new ArrayList<>();
+    List<MonomerConnection> connections = new ArrayList<>();
+    AbstractMolecule merged = null;
+    for (int i = 0; i < 12; i++) {
+      monomers.add(manipulator.getMolecule(smiles[i % 2], groups.cloneList()));
+      AbstractMolecule monomer = manipulator.getMolecule(smiles[i % 2], groups.cloneList());
+      if (i == 0) {
+        merged = monomer;
+      } else {
+        connections.add(new MonomerConnection(i - 1, 2, i, 1));
+        merged = manipulator.merge(merged, merged.getRGroupAtom(2, true), monomer, monomer.getRGroupAtom(1, true));
+      }
+    }
+    AbstractMolecule polymer = cdk.assemble(monomers, connections);
+    Assert.assertEquals(manipulator.convertMolecule(polymer, StType.SMILES),
+        manipulator.convertMolecule(merged, StType.SMILES));
+    Assert.assertEquals(polymer.getRgroups().keySet(), merged.getRgroups().keySet());
+    Assert.assertEquals(polymer.getAttachments().size(), 2);
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(polymer.getAttachments().get(i).getLabel(), merged.getAttachments().get(i).getLabel());
+      Assert.assertEquals(polymer.getAttachments().get(i).getSmiles(), merged.getAttachments().get(i).getSmiles());
+    }
+
+    // a junction at a chiral center keeps its configuration
+    String ribose = "O[C@H]1[C@H]([*])O[C@H](CO[*])[C@H]1O[*] |$;;;_R3;;;;;_R1;;;_R2$|";
+    String methyl = manipulator.convertExtendedSmiles("[*]C |$_R1;$|");
+    ribose = manipulator.convertExtendedSmiles(ribose);
+    AbstractMolecule first = manipulator.getMolecule(ribose, null);
+    AbstractMolecule second = manipulator.getMolecule(methyl, null);
+    merged = manipulator.merge(first, first.getRGroupAtom(3, true), second, second.getRGroupAtom(1, true));
+    polymer = cdk.assemble(
+        Arrays.asList(manipulator.getMolecule(ribose, null), manipulator.getMolecule(methyl, null)),
+        Arrays.asList(new MonomerConnection(0, 3, 1, 1)));
+    Assert.assertEquals(manipulator.convertMolecule(polymer, StType.SMILES),
+        manipulator.convertMolecule(merged, StType.SMILES));
+
+    // ring closure within the assembly
+    AbstractMolecule cycle = cdk.assemble(
+        Arrays.asList(manipulator.getMolecule(smiles[0], groups.cloneList()),
+            manipulator.getMolecule(smiles[0], groups.cloneList())),
+        Arrays.asList(new MonomerConnection(0, 2, 1, 1), new MonomerConnection(1, 2, 0, 1)));
+    first = manipulator.getMolecule(smiles[0], groups.cloneList());
+    second = manipulator.getMolecule(smiles[0], groups.cloneList());
+    merged = manipulator.merge(first, first.getRGroupAtom(2, true), second, second.getRGroupAtom(1, true));
+    merged = manipulator.merge(merged, merged.getRGroupAtom(2, true), merged, merged.getRGroupAtom(1, true));
+    Assert.assertEquals(manipulator.convertMolecule(cycle, StType.SMILES),
+        manipulator.convertMolecule(merged, StType.SMILES));
+    Assert.assertTrue(cycle.getAttachments().isEmpty());
+
+    try {
+      cdk.assemble(
+          Arrays.asList(manipulator.getMolecule(smiles[0], null), manipulator.getMolecule(smiles[0], null)),
+          Arrays.asList(new MonomerConnection(0, 2, 1, 1), new MonomerConnection(0, 2, 1, 2)));
+      Assert.fail("R group joined twice");
+    } catch (CTKException e) {
+      // expected
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void removeAtom() throws Exception {
+    CDKMolecule molecule = (CDKMolecule) manipulator.getMolecule("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", null);
+    IAtomBase r1 = molecule.getRGroupAtom(1, true);
+    IAtomBase r3 = molecule.getRGroupAtom(3, true);
+    molecule.removeINode(r1);
+    Assert.assertEquals(molecule.getIAtomArray().size(), molecule.getMolecule().getAtomCount());
+    Assert.assertNull(molecule.getRGroupAtom(1, true));
+    Assert.assertSame(molecule.getRGroupAtom(3, true), r3);
+    Assert.assertNotNull(molecule.getRGroupAtom(2, true));
+    molecule.removeINode(r3);
+    Assert.assertEquals(molecule.getIAtomArray().size(), molecule.getMolecule().getAtomCount());
+    for (IAtomBase atom : molecule.getIAtomArray()) {
+      Assert.assertTrue(molecule.getMolecule().contains((IAtom) atom.getMolAtom()));
+    }
+    try {
+      molecule.removeINode(r1);
+      Assert.fail("removed atom removed again");
+    } catch (CTKException e) {
+      // expected
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void rGroupIndex() throws Exception {
+    CDKMolecule molecule = (CDKMolecule) manipulator.getMolecule("[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", null);
+    Map<String, IAtomBase> groups = molecule.getRgroups();
+    Assert.assertEquals(groups.keySet(), new HashSet<>(Arrays.asList("R1", "R2", "R3")));
+    IAtomBase r3 = groups.get("R3");
+    Assert.assertSame(molecule.getRGroupAtom(3, true), r3);
+    Assert.assertEquals(molecule.getRGroupAtom(3, false).getIAtno(), 7);
+
+    molecule.changeAtomLabel(3, 4);
+    Assert.assertNull(molecule.getRGroupAtom(3, true));
+    Assert.assertSame(molecule.getRGroupAtom(4, true), r3);
+    Assert.assertEquals(((IPseudoAtom) r3.getMolAtom()).getLabel(), "R4");
+    // processed atoms keep their new label
+    molecule.changeAtomLabel(4, 5);
+    Assert.assertSame(molecule.getRGroupAtom(4, true), r3);
+    molecule.clearFlags();
+
+    r3.setRgroup(6);
+    Assert.assertSame(molecule.getRgroups().get("R6"), r3);
+    Assert.assertFalse(molecule.getRgroups().containsKey("R4"));
+
+    molecule.removeINode(molecule.getRGroupAtom(1, true));
+    Assert.assertEquals(molecule.getRgroups().keySet(), new HashSet<>(Arrays.asList("R2", "R6")));
+
+    AbstractMolecule other = manipulator.getMolecule("[*:1]C", null);
+    IAtomBase r1 = other.getRGroupAtom(1, true);
+    molecule.addIBase(other);
+    Assert.assertSame(molecule.getRGroupAtom(1, true), r1);
+    r1.setRgroup(7);
+    Assert.assertSame(molecule.getRGroupAtom(7, true), r1);
+  }
+
+  /**
+   * merges a long peptide residue by residue and logs the time per merge, which must not grow with the polymer, run
+   * with {@code mvn test -DexcludedGroups= -Dgroups=benchmark}
+   */
+  @Test(groups = {"benchmark"})
+  public void mergeBenchmark() throws Exception {
+    CDKManipulator cdk = new CDKManipulator();
+    cdk.setMoleculeCacheSize(1);
+    String alanine = cdk.convertExtendedSmiles("C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|");
+    AttachmentList groups = new AttachmentList();
+    groups.add(new Attachment("R1-H", "R1", "H", cdk.convertExtendedSmiles("[*][H] |$_R1;$|")));
+    groups.add(new Attachment("R2-OH", "R2", "OH", cdk.convertExtendedSmiles("O[*] |$;_R2$|")));
+
+    AbstractMolecule polymer = cdk.getMolecule(alanine, groups.cloneList());
+    int block = 250;
+    List<Long> times = new ArrayList<>();
+    for (int size = 1; size < 2000; size += block) {
+      List<AbstractMolecule> monomers = new ArrayList<>(block);
+      for (int i = 0; i < block; i++) {
+        monomers.add(cdk.getMolecule(alanine, groups.cloneList()));
+      }
+      long start = System.nanoTime();
+      for (AbstractMolecule monomer : monomers) {
+        polymer = cdk.merge(polymer, polymer.getRGroupAtom(2, true), monomer, monomer.getRGroupAtom(1, true));
+      }
+      times.add((System.nanoTime() - start) / 1000 / block);
+      LOG.info("merge at " + size + " residues: " + times.get(times.size() - 1) + " us");
+    }
+    // the first block warms up the JIT, the last one may only be a small factor slower than the second
+    Assert.assertTrue(times.get(times.size() - 1) < 5 * times.get(1), "merge time grows with the polymer: " + times);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void wrapperBonds() throws Exception {
+    CDKManipulator cdk = (CDKManipulator) manipulator;
+    String phenylalanine = cdk.convertExtendedSmiles("[*]N[C@@H](Cc1ccccc1)C([*])=O |$_R1;;;;;;;;;;;_R2;$|");
+    List<AbstractMolecule> monomers = new ArrayList<>();
+    List<MonomerConnection> connections = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      monomers.add(cdk.getMolecule(phenylalanine, null));
+      if (i > 0) {
+        connections.add(new MonomerConnection(i - 1, 2, i, 1));
+      }
+    }
+    AbstractMolecule assembled = cdk.assemble(monomers, connections);
+    AbstractMolecule polymer = assembled.cloneMolecule();
+    IAtomContainer container = (IAtomContainer) polymer.getMolecule();
+    Assert.assertEquals(cdk.convertMolecule(polymer, StType.SMILES), cdk.convertMolecule(assembled, StType.SMILES));
+    for (IAtom atom : container.atoms()) {
+      Assert.assertFalse(((IAtomContainer) assembled.getMolecule()).contains(atom));
+    }
+    Assert.assertEquals(polymer.getIAtomArray().size(), container.getAtomCount());
+    for (int i = 0; i < container.getAtomCount(); i++) {
+      IAtomBase atom = polymer.getIAtomArray().get(i);
+      Assert.assertSame(atom.getMolAtom(), container.getAtom(i));
+      List<IBond> expected = container.getConnectedBondsList(container.getAtom(i));
+      Assert.assertEquals(atom.getIBondCount(), expected.size());
+      for (int j = 0; j < expected.size(); j++) {
+        Assert.assertSame(((CDKBond) atom.getIBond(j)).getAtomBond(), expected.get(j));
+      }
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void bondEnds() throws Exception {
+    AbstractMolecule first = manipulator.getMolecule("[*:1]N[C@H](C)C([*:2])=O", null);
+    AbstractMolecule second = manipulator.getMolecule("[*:1]N[C@H](CO)C([*:2])=O", null);
+    IAtomBase nitrogen = second.getRGroupAtom(1, false);
+    Assert.assertSame(second.getIAtomArray().get(1), nitrogen);
+    first.addIBase(second);
+    for (IAtomBase atom : first.getIAtomArray()) {
+      for (int i = 0; i < atom.getIBondCount(); i++) {
+        IBondBase bond = atom.getIBond(i);
+        Assert.assertTrue(bond.getIAtom1() == atom || bond.getIAtom2() == atom);
+        Assert.assertTrue(first.getIAtomArray().contains(bond.getIAtom1()));
+        Assert.assertTrue(first.getIAtomArray().contains(bond.getIAtom2()));
+      }
+    }
+    for (IBondBase bond : first.getIBondArray()) {
+      Assert.assertTrue(first.getIAtomArray().contains(bond.getIAtom1()));
+      Assert.assertTrue(bond.getIAtom1().compare(bond.getIAtom1()));
+    }
+    Assert.assertSame(first.getRGroupAtom(1, false), nitrogen);
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void liveViews() throws Exception {
+    AbstractMolecule molecule = manipulator.getMolecule("[*:1]N[C@H](C)C([*:2])=O", null);
+    IAtomContainer container = (IAtomContainer) molecule.getMolecule();
+    List<IAtomBase> atoms = molecule.getIAtomArray();
+    List<IBondBase> bonds = molecule.getIBondArray();
+    Assert.assertSame(atoms.get(2), atoms.get(2));
+    Assert.assertEquals(atoms.get(2).getIBondCount(), 3);
+    Assert.assertTrue(atoms.contains(atoms.get(2)));
+
+    AbstractMolecule other = manipulator.getMolecule("[*:1]C", null);
+    IAtomBase methyl = other.getIAtomArray().get(1);
+    molecule.addIBase(other);
+    Assert.assertEquals(atoms.size(), container.getAtomCount());
+    Assert.assertEquals(bonds.size(), container.getBondCount());
+    Assert.assertTrue(atoms.contains(methyl));
+    Assert.assertSame(atoms.get(atoms.size() - 1), methyl);
+
+    molecule.removeINode(molecule.getRGroupAtom(2, true));
+    Assert.assertEquals(atoms.size(), container.getAtomCount());
+    Assert.assertEquals(bonds.size(), container.getBondCount());
+    for (int i = 0; i < atoms.size(); i++) {
+      Assert.assertSame(atoms.get(i).getMolAtom(), container.getAtom(i));
+      Assert.assertEquals(atoms.get(i).getIBondCount(), container.getConnectedBondsCount(container.getAtom(i)));
+    }
+  }
+
+  /**
+   * wraps a polymer of about 40000 atoms, run with {@code mvn test -DexcludedGroups= -Dgroups=benchmark}
+   */
+  @Test(groups = {"benchmark"})
+  public void wrapBenchmark() throws Exception {
+    CDKManipulator cdk = new CDKManipulator();
+    String phenylalanine = cdk.convertExtendedSmiles("[*]N[C@@H](Cc1ccccc1)C([*])=O |$_R1;;;;;;;;;;;_R2;$|");
+    List<AbstractMolecule> monomers = new ArrayList<>();
+    List<MonomerConnection> connections = new ArrayList<>();
+    for (int i = 0; i < 3500; i++) {
+      monomers.add(cdk.getMolecule(phenylalanine, null));
+      if (i > 0) {
+        connections.add(new MonomerConnection(i - 1, 2, i, 1));
+      }
+    }
+    long start = System.nanoTime();
+    AbstractMolecule polymer = cdk.assemble(monomers, connections);
+    LOG.info("assemble " + ((IAtomContainer) polymer.getMolecule()).getAtomCount() + " atoms: "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+    for (int i = 0; i < 5; i++) {
+      start = System.nanoTime();
+      polymer.cloneMolecule();
+      LOG.info("cloneMolecule: " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void substructureIndex() throws Exception {
+    Map<String, AbstractMolecule> molecules = new LinkedHashMap<>();
+    molecules.put("phe", manipulator.getMolecule("NC(Cc1ccccc1)C(O)=O", null));
+    molecules.put("tyr", manipulator.getMolecule("NC(CC1=CC=C(O)C=C1)C(O)=O", null));
+    molecules.put("ala", manipulator.getMolecule("CC(N)C(O)=O", null));
+    molecules.put("cys", manipulator.getMolecule("NC(CS)C(O)=O", null));
+    molecules.put("pyr", manipulator.getMolecule("c1ccncc1", null));
+    molecules.put("eth", manipulator.getMolecule("CCO", null));
+    SubstructureIndex index = new SubstructureIndex();
+    Assert.assertTrue(index.addAll(molecules).isEmpty());
+    Assert.assertEquals(index.size(), 6);
+    // aromaticity is perceived on copies, the kekule tyrosine is left as it was
+    for (IBond bond : ((IAtomContainer) molecules.get("tyr").getMolecule()).bonds()) {
+      Assert.assertFalse(bond.isAromatic());
+    }
+
+    Assert.assertEquals(index.search(manipulator.getMolecule("C1=CC=CC=C1", null)), Arrays.asList("phe", "tyr"));
+    Assert.assertEquals(index.search(manipulator.getMolecule("c1ccccc1O", null)), Arrays.asList("tyr"));
+    Assert.assertEquals(index.search(manipulator.getMolecule("SC", null)), Arrays.asList("cys"));
+    Assert.assertEquals(index.search(manipulator.getMolecule("NCC(O)=O", null)),
+        Arrays.asList("phe", "tyr", "ala", "cys"));
+    Assert.assertEquals(index.search(manipulator.getMolecule("C1=CN=CC=C1", null)), Arrays.asList("pyr"));
+    Assert.assertEquals(index.search(manipulator.getMolecule("CO", null)),
+        Arrays.asList("phe", "tyr", "ala", "cys", "eth"));
+    Assert.assertEquals(index.countCandidates(manipulator.getMolecule("SC", null)), 1);
+
+    index.add("ser", manipulator.getMolecule("NC(CO)C(O)=O", null));
+    Assert.assertEquals(index.search(manipulator.getMolecule("OCC(N)C=O", null)), Arrays.asList("ser"));
+
+    // the screen never drops a structure the matcher accepts
+    molecules.put("ser", manipulator.getMolecule("NC(CO)C(O)=O", null));
+    molecules.put("bnz", manipulator.getMolecule("c1ccccc1", null));
+    index.add("bnz", molecules.get("bnz"));
+    Aromaticity aromaticity = new Aromaticity(ElectronDonation.daylight(), Cycles.or(Cycles.all(), Cycles.all(6)));
+    String[] queries = {"CC", "C=C", "C=CC=C", "C1=CC=CC=C1", "c1ccccc1", "C1=CC=C(O)C=C1", "C1=CN=CC=C1", "CO", "C"};
+    for (String query : queries) {
+      IAtomContainer perceivedQuery = ((IAtomContainer) manipulator.getMolecule(query, null).getMolecule()).clone();
+      aromaticity.apply(perceivedQuery);
+      Pattern pattern =
+          VentoFoggia.findSubstructure(perceivedQuery, AtomMatcher.forElement(), BondMatcher.forStrictOrder());
+      List<String> expected = new ArrayList<>();
+      for (Map.Entry<String, AbstractMolecule> entry : molecules.entrySet()) {
+        IAtomContainer target = ((IAtomContainer) entry.getValue().getMolecule()).clone();
+        aromaticity.apply(target);
+        if (pattern.matches(target)) {
+          expected.add(entry.getKey());
+        }
+      }
+      Assert.assertEquals(index.search(manipulator.getMolecule(query, null)), expected, query);
+      Assert.assertTrue(index.countCandidates(manipulator.getMolecule(query, null)) >= expected.size(), query);
+    }
+    Assert.assertEquals(index.search(manipulator.getMolecule("C1=CC=CC=C1", null)), Arrays.asList("phe", "tyr", "bnz"));
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void similarityIndex() throws Exception {
+    Map<String, AbstractMolecule> molecules = new LinkedHashMap<>();
+    molecules.put("phe", manipulator.getMolecule("NC(Cc1ccccc1)C(O)=O", null));
+    molecules.put("tyr", manipulator.getMolecule("NC(CC1=CC=C(O)C=C1)C(O)=O", null));
+    molecules.put("ala", manipulator.getMolecule("CC(N)C(O)=O", null));
+    molecules.put("ala2", manipulator.getMolecule("C[C@H](N)C(O)=O", null));
+    molecules.put("pyr", manipulator.getMolecule("c1ccncc1", null));
+    SimilarityIndex heap = new SimilarityIndex();
+    SimilarityIndex direct = new SimilarityIndex(2, true, new ForkJoinPool());
+    Assert.assertTrue(heap.addAll(molecules).isEmpty());
+    Assert.assertTrue(direct.addAll(molecules).isEmpty());
+    Assert.assertTrue(direct.isOffHeap());
+    Assert.assertEquals(direct.size(), 5);
+
+    List<SimilarityIndex.Hit> hits = heap.search(manipulator.getMolecule("NC(Cc1ccccc1)C(O)=O", null), 3);
+    Assert.assertEquals(hits.size(), 3);
+    Assert.assertEquals(hits.get(0).getId(), "phe");
+    Assert.assertEquals(hits.get(0).getSimilarity(), 1.0);
+    Assert.assertEquals(hits.get(1).getId(), "tyr");
+    Assert.assertTrue(hits.get(1).getSimilarity() >= hits.get(2).getSimilarity());
+    Assert.assertEquals(direct.search(manipulator.getMolecule("NC(Cc1ccccc1)C(O)=O", null), 3).toString(),
+        hits.toString());
+
+    // equal fingerprints keep the order they were added in
+    hits = direct.search(manipulator.getMolecule("NC(C)C(O)=O", null), 10);
+    Assert.assertEquals(hits.size(), 5);
+    Assert.assertEquals(hits.get(0).getId(), "ala");
+    Assert.assertEquals(hits.get(1).getId(), "ala2");
+    Assert.assertEquals(hits.get(1).getSimilarity(), 1.0);
+    Assert.assertTrue(heap.search(new long[SubstructureIndex.FINGERPRINT_SIZE / 64], 0).isEmpty());
+  }
+
+  @Test(groups = {"CDKTest"})
+  public void moleculeProperties() throws Exception {
+    String[] inputs = {"[*:1]N[C@H](CCCCN[*:3])C([*:2])=O", "NC(CC1=CC=C(O)C=C1)C(O)=O", "O=S(=O)(O)O", "[NH4+]",
+        "Cl[Si](Cl)(Cl)Br", "[13CH4]", "[H]OC([2H])Br", "C[Se]CC[C@H](N)C(O)=O", "[*]OP(=O)([O-])O[*] |$_R1;;;;;;_R2$|"};
+    List<AbstractMolecule> molecules = new ArrayList<>();
+    for (String input : inputs) {
+      molecules.add(manipulator.getMolecule(input.contains("|") ? manipulator.convertExtendedSmiles(input) : input,
+          null));
+    }
+    List<BatchResult<MoleculeProperties>> results = ((CDKManipulator) manipulator).getMoleculeInfos(molecules);
+    for (int i = 0; i < inputs.length; i++) {
+      IAtomContainer container = (IAtomContainer) molecules.get(i).getMolecule();
+      MoleculeInfo info = manipulator.getMoleculeInfo(molecules.get(i));
+      Assert.assertEquals(info.getMolecularFormula(),
+          MolecularFormulaManipulator.getString(MolecularFormulaManipulator.getMolecularFormula(container)), inputs[i]);
+      Assert.assertEquals(info.getMolecularWeight(), AtomContainerManipulator.getNaturalExactMass(container), 1e-9);
+      Assert.assertEquals(info.getExactMass(),
+          MolecularFormulaManipulator.getMajorIsotopeMass(MolecularFormulaManipulator.getMolecularFormula(container)),
+          1e-9);
+      Assert.assertEquals(results.get(i).get().getMolecularFormula(), info.getMolecularFormula());
+    }
+    Map<String, Integer> counts = results.get(0).get().getElementCounts();
+    Assert.assertEquals(counts.toString(), "{C=6, H=11, N=2, O=1, R=3}");
+  }
+
+  /**
+   * searches the ten nearest neighbours in random fingerprints of growing libraries and logs queries per second,
+   * run with {@code mvn test -DexcludedGroups= -Dgroups=benchmark}
+   */
+  @Test(groups = {"benchmark"})
+  public void similarityIndexBenchmark() throws Exception {
+    Random random = new Random(42);
+    int words = SubstructureIndex.FINGERPRINT_SIZE / 64;
+    long[][] queries = new long[100][];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = randomFingerprint(random, words);
+    }
+    for (boolean offHeap : new boolean[] {false, true}) {
+      SimilarityIndex index = new SimilarityIndex(16, offHeap, new ForkJoinPool());
+      for (int size : new int[] {10000, 100000, 500000, 1000000}) {
+        while (index.size() < size) {
+          index.add("F" + index.size(), randomFingerprint(random, words));
+        }
+        for (long[] query : queries) {
+          index.search(query, 10);
+        }
+        long start = System.nanoTime();
+        for (long[] query : queries) {
+          index.search(query, 10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info((offHeap ? "off-heap " : "heap ") + size + " fingerprints: "
+            + Math.round(queries.length / seconds) + " queries/s");
+      }
+    }
+  }
+
+  private static long[] randomFingerprint(Random random, int words) {
+    long[] fingerprint = new long[words];
+    for (int w = 0; w < words; w++) {
+      // about one bit in eight is set, as for the path fingerprints of monomers
+      fingerprint[w] = random.nextLong() & random.nextLong() & random.nextLong();
+    }
+    return fingerprint;
+  }
+
+  /**
+   * indexes generated peptides and searches substructures, run with
+   * {@code mvn test -DexcludedGroups= -Dgroups=benchmark}
+   */
+  @Test(groups = {"benchmark"})
+  public void substructureIndexBenchmark() throws Exception {
+    String[] sideChains = {"C", "CC(C)C", "Cc1ccccc1", "CS", "CO", "CC(=O)O", "CCCCN", "Cc1c[nH]c2ccccc12",
+        "Cc1ccc(O)cc1", "CC(N)=O", "CCSC", "C(C)O", "Cc1c[nH]cn1", "CCCNC(N)=N"};
+    Random random = new Random(42);
+    Map<String, AbstractMolecule> molecules = new LinkedHashMap<>();
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder smiles = new StringBuilder("N");
+      for (int j = 0; j < 4; j++) {
+        smiles.append(j > 0 ? "NC(" : "C(").append(sideChains[random.nextInt(sideChains.length)]).append(")C(=O)");
+      }
+      molecules.put("P" + i, manipulator.getMolecule(smiles.append("O").toString(), null));
+    }
+
+    long start = System.nanoTime();
+    SubstructureIndex index = new SubstructureIndex();
+    index.addAll(molecules);
+    LOG.info("index " + index.size() + " molecules: " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    String[] queries = {"c1ccc2[nH]ccc2c1", "CSCC", "NC(N)=N", "c1ccccc1O", "CC(C)CC(N)C=O", "NCCCCC(N)C(=O)NCC=O"};
+    for (String query : queries) {
+      AbstractMolecule molecule = manipulator.getMolecule(query, null);
+      start = System.nanoTime();
+      int candidates = index.countCandidates(molecule);
+      long screen = System.nanoTime() - start;
+      start = System.nanoTime();
+      int hits = index.search(molecule).size();
+      LOG.info(query + ": " + candidates + " candidates in " + screen / 1000 + " us, " + hits
+          + " hits in " + (System.nanoTime() - start) / 1000 + " us");
+    }
+  }
 }